@@ -0,0 +1,43 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.benchmark;
+
+import systems.thedawn.bls.block.BlsBlocks;
+import systems.thedawn.bls.block.NetworkComponents;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.block.BlockState;
+
+/**
+ * Initializes the parts of the game the benchmarks need. Blocks are not registered, since registration
+ * relies on the mod loader; block states work without it.
+ */
+final class BenchmarkBootstrap {
+	private static boolean initialized;
+
+	private BenchmarkBootstrap() {
+	}
+
+	static synchronized void init() {
+		if(!initialized) {
+			SharedConstants.createGameVersion();
+			Bootstrap.initialize();
+			NetworkComponents.freeze();
+			initialized = true;
+		}
+	}
+
+	/**
+	 * Every state of the wire block.
+	 */
+	static BlockState[] wireStates() {
+		init();
+		return BlsBlocks.WIRE.getStateManager().getStates().toArray(new BlockState[0]);
+	}
+}
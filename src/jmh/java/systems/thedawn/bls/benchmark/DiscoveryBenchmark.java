@@ -0,0 +1,74 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import systems.thedawn.bls.block.BlsBlocks;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Discovery along a straight wire between two nodes, stepping the cursor the same way
+ * {@code NetworkNodeBlockEntity.tick} does. Ticking a block entity requires a server world, so the
+ * walk reads from an in-memory view instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiscoveryBenchmark {
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private InMemoryBlockView view;
+
+	@Setup
+	public void setup() {
+		BenchmarkBootstrap.init();
+		this.view = new InMemoryBlockView();
+		// wires on the floor run north-south through the forward and backward connections
+		var base = BlsBlocks.WIRE.getDefaultState().with(WireBlockBase.FACING, Direction.UP);
+		this.view.setBlockState(new BlockPos(0, 0, 0), base.with(WireBlockBase.BACKWARD, true));
+		for(int z = 1; z <= this.length; z++) {
+			this.view.setBlockState(new BlockPos(0, 0, z), base.with(WireBlockBase.FORWARD, true).with(WireBlockBase.BACKWARD, true));
+		}
+		this.view.setBlockState(new BlockPos(0, 0, this.length + 1), base.with(WireBlockBase.FORWARD, true));
+	}
+
+	/**
+	 * Walks from the first node to the other end.
+	 *
+	 * @return The distance between the nodes.
+	 */
+	@Benchmark
+	public int walk() {
+		var cursor = new BlockPos.Mutable(0, 0, 0);
+		int step = Direction.SOUTH.getId();
+		int distance = 0;
+		while(true) {
+			var dir = Direction.byId(step);
+			cursor.move(dir);
+			distance++;
+			step = NetworkNodeBlockEntity.stepDiscovery(this.view.getBlockState(cursor), dir.getOpposite());
+			if(step < 0) {
+				return step == NetworkNodeBlockEntity.STEP_NODE ? distance : -distance;
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.benchmark;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.fluid.FluidState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
+
+/**
+ * A block view backed by a hash map, standing in for a world in benchmarks. Positions without a state are air.
+ */
+public final class InMemoryBlockView implements BlockView {
+	private final Long2ObjectOpenHashMap<BlockState> states;
+
+	public InMemoryBlockView() {
+		this.states = new Long2ObjectOpenHashMap<>();
+		this.states.defaultReturnValue(Blocks.AIR.getDefaultState());
+	}
+
+	public void setBlockState(BlockPos pos, BlockState state) {
+		this.states.put(pos.asLong(), state);
+	}
+
+	@Nullable
+	@Override
+	public BlockEntity getBlockEntity(BlockPos pos) {
+		return null;
+	}
+
+	@Override
+	public BlockState getBlockState(BlockPos pos) {
+		return this.states.get(pos.asLong());
+	}
+
+	@Override
+	public FluidState getFluidState(BlockPos pos) {
+		return this.getBlockState(pos).getFluidState();
+	}
+
+	@Override
+	public int getHeight() {
+		return 384;
+	}
+
+	@Override
+	public int getBottomY() {
+		return -64;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import systems.thedawn.bls.network.NetworkComponentData;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Saving and loading a node with four connections, in the current and the original NBT format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NetworkComponentDataBenchmark {
+	private static final BlockPos ORIGIN = new BlockPos(1000, 64, -2000);
+	private static final Direction[] HORIZONTAL = { Direction.NORTH, Direction.SOUTH, Direction.WEST, Direction.EAST };
+
+	private NetworkComponentData data;
+	private NbtCompound packed;
+	private NbtCompound legacy;
+
+	@Setup
+	public void setup() {
+		BenchmarkBootstrap.init();
+		this.data = new NetworkComponentData();
+		this.legacy = new NbtCompound();
+		var legacyConnections = new NbtList();
+		for(int i = 0; i < HORIZONTAL.length; i++) {
+			var dir = HORIZONTAL[i];
+			var otherPos = ORIGIN.offset(dir, 10 + i);
+			this.data.updateConnection(dir, new NetworkComponentData.Connection(dir.getOpposite(), otherPos, Direction.UP, 10 + i));
+			var connectionNbt = new NbtCompound();
+			connectionNbt.putByte("SourceDir", (byte)dir.getId());
+			connectionNbt.putByte("DestDir", (byte)dir.getOpposite().getId());
+			connectionNbt.putInt("X", otherPos.getX());
+			connectionNbt.putInt("Y", otherPos.getY());
+			connectionNbt.putInt("Z", otherPos.getZ());
+			connectionNbt.putByte("Face", (byte)Direction.UP.getId());
+			connectionNbt.putInt("Distance", 10 + i);
+			legacyConnections.add(connectionNbt);
+		}
+		this.legacy.put("Connections", legacyConnections);
+		this.legacy.putByte("Power", (byte)0);
+		this.legacy.putByte("Signal", (byte)3);
+		this.packed = new NbtCompound();
+		this.data.writeNbt(this.packed, ORIGIN);
+	}
+
+	@Benchmark
+	public NbtCompound writeNbt() {
+		var nbt = new NbtCompound();
+		this.data.writeNbt(nbt, ORIGIN);
+		return nbt;
+	}
+
+	@Benchmark
+	public NetworkComponentData readNbt() {
+		var data = new NetworkComponentData();
+		data.readNbt(this.packed, ORIGIN);
+		return data;
+	}
+
+	@Benchmark
+	public NetworkComponentData readLegacyNbt() {
+		var data = new NetworkComponentData();
+		data.readNbt(this.legacy, ORIGIN);
+		return data;
+	}
+}
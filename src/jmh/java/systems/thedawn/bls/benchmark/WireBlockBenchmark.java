@@ -0,0 +1,86 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import systems.thedawn.bls.block.BlsBlocks;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.ShapeContext;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Per-state wire block queries, cycling through every wire state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WireBlockBenchmark {
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private BlockState[] states;
+	private WireBlockBase wire;
+	private InMemoryBlockView view;
+	private int index;
+
+	@Setup
+	public void setup() {
+		this.states = BenchmarkBootstrap.wireStates();
+		this.wire = (WireBlockBase)BlsBlocks.WIRE;
+		this.view = new InMemoryBlockView();
+	}
+
+	private BlockState nextState() {
+		var state = this.states[this.index];
+		this.index = (this.index + 1) % this.states.length;
+		return state;
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public Object getOutlineShape() {
+		return this.wire.getOutlineShape(this.nextState(), this.view, BlockPos.ORIGIN, ShapeContext.absent());
+	}
+
+	@Benchmark
+	public boolean shouldHaveBlockEntity() {
+		return WireBlockBase.shouldHaveBlockEntity(this.nextState());
+	}
+
+	@Benchmark
+	public Object connectionDirs() {
+		return WireBlockBase.connectionDirs(this.nextState());
+	}
+
+	@Benchmark
+	public int connectionMask() {
+		return WireBlockBase.connectionMask(this.nextState());
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public void getStateForNeighborUpdate(Blackhole blackhole) {
+		var state = this.nextState();
+		var neighbor = this.states[(this.index * 7) % this.states.length];
+		for(var dir : DIRECTIONS) {
+			// wires never look at the world during shape updates
+			blackhole.consume(this.wire.getStateForNeighborUpdate(state, dir, neighbor, null, BlockPos.ORIGIN, BlockPos.ORIGIN.offset(dir)));
+		}
+	}
+}
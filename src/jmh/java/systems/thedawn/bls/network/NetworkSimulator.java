@@ -0,0 +1,454 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceLinkedOpenHashSet;
+import systems.thedawn.bls.block.DiscoveryCursors;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Deterministic headless simulation of whole networks converging, for macro-benchmarks.
+ * <p>
+ * The simulator runs the segment index, network graph, signal propagator and power solver against a
+ * synthetic world. Block entities cannot exist without a server world, so each simulated node holds the
+ * same {@link DiscoveryCursors} as {@link NetworkNodeBlockEntity} and ticks them the same way: resolve
+ * each direction through the segment index, and step a cursor along the wire where that fails. The
+ * scheduler, parking, neighbor update queue and parallel discovery need a server world and are not
+ * simulated; every pending node ticks every tick, in a fully loaded world.
+ * <p>
+ * Usage: {@code NetworkSimulator <line|grid|tree|mesh|churn> <wires> [seed] [churn ticks]}
+ */
+public final class NetworkSimulator {
+	private static final int MAX_TICKS = 1_000_000;
+	private static final Direction[] HORIZONTAL = { Direction.NORTH, Direction.SOUTH, Direction.WEST, Direction.EAST };
+
+	/**
+	 * Spacing between parallel lines in grid and tree layouts.
+	 */
+	private static final int SPACING = 8;
+
+	private final SimulatedWorld world;
+	private final WireSegmentIndex segments;
+	private final NetworkGraph graph;
+	private final SignalPropagator signals;
+	private final PowerSolver power;
+	private final Long2ObjectOpenHashMap<SimulatedNode> nodes;
+	private final ReferenceLinkedOpenHashSet<SimulatedNode> active;
+
+	private long discoverySteps;
+	private boolean signalsSettled;
+
+	private NetworkSimulator() {
+		this.world = new SimulatedWorld();
+		this.segments = new WireSegmentIndex();
+		this.graph = new NetworkGraph();
+		this.signals = new SignalPropagator(this.graph);
+		this.power = new PowerSolver(this.graph);
+		this.graph.addListener(this.signals);
+		this.graph.addListener(this.power);
+		this.nodes = new Long2ObjectOpenHashMap<>();
+		this.active = new ReferenceLinkedOpenHashSet<>();
+	}
+
+	public static void main(String[] args) {
+		if(args.length < 2) {
+			System.err.println("usage: NetworkSimulator <line|grid|tree|mesh|churn> <wires> [seed] [churn ticks]");
+			System.exit(1);
+		}
+		var layout = args[0].toLowerCase(Locale.ROOT);
+		int wires = Integer.parseInt(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		int churnTicks = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+		SharedConstants.createGameVersion();
+		Bootstrap.initialize();
+		NetworkComponents.freeze();
+
+		var random = new Random(seed);
+		var positions = switch(layout) {
+			case "line" -> line(wires);
+			case "grid", "churn" -> grid(wires, SPACING);
+			case "tree" -> tree(wires, random);
+			case "mesh" -> grid(wires, 1);
+			default -> throw new IllegalArgumentException("Unknown layout: " + layout);
+		};
+
+		var simulator = new NetworkSimulator();
+		var placement = simulator.run(() -> simulator.placeAll(positions));
+		report(layout + " placement", simulator, placement);
+		if(layout.equals("churn")) {
+			int perTick = Math.max(1, positions.size() / 1000);
+			var churn = simulator.runFor(churnTicks, () -> {
+				for(int i = 0; i < perTick; i++) {
+					long pos = positions.getLong(random.nextInt(positions.size()));
+					simulator.toggle(pos);
+				}
+			});
+			report(layout + " edits", simulator, churn);
+			report(layout + " settle", simulator, simulator.run(() -> {}));
+		}
+	}
+
+	private static void report(String phase, NetworkSimulator simulator, Result result) {
+		System.out.printf(Locale.ROOT,
+			"%-16s wires=%d nodes=%d networks=%d ticks=%d converged=%b steps=%d tick_ms_avg=%.3f tick_ms_max=%.3f peak_mb=%.1f%n",
+			phase,
+			simulator.world.wireCount(),
+			simulator.graph.nodeCount(),
+			simulator.graph.networkCount(),
+			result.ticks,
+			result.converged,
+			result.steps,
+			result.ticks == 0 ? 0.0 : result.totalNanos / 1e6 / result.ticks,
+			result.maxNanos / 1e6,
+			result.peakBytes / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Applies an edit, then ticks until the networks converge.
+	 */
+	private Result run(Runnable edit) {
+		var result = new Result();
+		System.gc();
+		this.measure(result, edit);
+		while(!this.isConverged() && result.ticks < MAX_TICKS) {
+			this.measure(result, () -> {});
+		}
+		result.converged = this.isConverged();
+		return result;
+	}
+
+	/**
+	 * Applies an edit every tick for a number of ticks.
+	 */
+	private Result runFor(int ticks, Runnable edit) {
+		var result = new Result();
+		System.gc();
+		for(int i = 0; i < ticks; i++) {
+			this.measure(result, edit);
+		}
+		result.converged = this.isConverged();
+		return result;
+	}
+
+	private void measure(Result result, Runnable edit) {
+		long steps = this.discoverySteps;
+		long start = System.nanoTime();
+		edit.run();
+		this.tick();
+		long elapsed = System.nanoTime() - start;
+		var runtime = Runtime.getRuntime();
+		result.ticks++;
+		result.steps += this.discoverySteps - steps;
+		result.totalNanos += elapsed;
+		result.maxNanos = Math.max(result.maxNanos, elapsed);
+		result.peakBytes = Math.max(result.peakBytes, runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	private boolean isConverged() {
+		return this.active.isEmpty() && this.signalsSettled;
+	}
+
+	// layouts
+
+	private static LongArrayList line(int wires) {
+		var positions = new LongArrayList(wires);
+		for(int z = 0; z < wires; z++) {
+			positions.add(BlockPos.asLong(0, 0, z));
+		}
+		return positions;
+	}
+
+	/**
+	 * Lines in both directions every {@code spacing} blocks, meeting in four-way junctions. A spacing of
+	 * one fills a square, making every interior wire a junction.
+	 */
+	private static LongArrayList grid(int wires, int spacing) {
+		int side = Math.max(2, (int)Math.sqrt(spacing == 1 ? wires : wires * spacing / 2.0));
+		var positions = new LongArrayList(wires);
+		for(int x = 0; x < side; x++) {
+			for(int z = 0; z < side; z++) {
+				if(x % spacing == 0 || z % spacing == 0) {
+					positions.add(BlockPos.asLong(x, 0, z));
+				}
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * A random spanning tree over a lattice of junctions {@link #SPACING} blocks apart.
+	 */
+	private static LongArrayList tree(int wires, Random random) {
+		int side = Math.max(2, (int)Math.sqrt((double)wires / SPACING));
+		var positions = new LongOpenHashSet();
+		var visited = new boolean[side * side];
+		var stack = new LongArrayList();
+		visited[0] = true;
+		stack.add(0);
+		positions.add(BlockPos.asLong(0, 0, 0));
+		var order = new int[] { 0, 1, 2, 3 };
+		while(!stack.isEmpty()) {
+			int cell = (int)stack.getLong(stack.size() - 1);
+			int cx = cell % side;
+			int cz = cell / side;
+			// shuffle the directions to branch in
+			for(int i = 3; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int tmp = order[i];
+				order[i] = order[j];
+				order[j] = tmp;
+			}
+			boolean extended = false;
+			for(int i : order) {
+				var dir = HORIZONTAL[i];
+				int nx = cx + dir.getOffsetX();
+				int nz = cz + dir.getOffsetZ();
+				if(nx < 0 || nz < 0 || nx >= side || nz >= side || visited[nz * side + nx]) {
+					continue;
+				}
+				visited[nz * side + nx] = true;
+				for(int step = 1; step <= SPACING; step++) {
+					positions.add(BlockPos.asLong(cx * SPACING + dir.getOffsetX() * step, 0, cz * SPACING + dir.getOffsetZ() * step));
+				}
+				stack.add(nz * side + nx);
+				extended = true;
+				break;
+			}
+			if(!extended) {
+				stack.removeLong(stack.size() - 1);
+			}
+		}
+		var sorted = positions.toLongArray();
+		Arrays.sort(sorted);
+		return LongArrayList.wrap(sorted);
+	}
+
+	// edits
+
+	private void placeAll(LongArrayList positions) {
+		for(int i = 0; i < positions.size(); i++) {
+			this.world.putWire(positions.getLong(i));
+		}
+		for(int i = 0; i < positions.size(); i++) {
+			long pos = positions.getLong(i);
+			this.applyChange(pos, this.world.getBlockState(pos), this.world.refresh(pos));
+		}
+		// drive the network from the first node
+		for(int i = 0; i < positions.size(); i++) {
+			long pos = positions.getLong(i);
+			if(WireBlockBase.shouldHaveBlockEntity(this.world.getBlockState(pos))) {
+				this.signals.setSource(pos, true);
+				this.power.setSupply(pos, NetworkComponentData.MAX_POWER);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Breaks the wire at the given position, or places one if there is none.
+	 */
+	private void toggle(long pos) {
+		var oldStates = new BlockState[5];
+		oldStates[0] = this.world.getBlockState(pos);
+		for(int i = 0; i < 4; i++) {
+			oldStates[i + 1] = this.world.getBlockState(BlockPos.offset(pos, HORIZONTAL[i]));
+		}
+		if(this.world.hasWire(pos)) {
+			this.world.removeWire(pos);
+		} else {
+			this.world.putWire(pos);
+		}
+		this.applyChange(pos, oldStates[0], this.world.refresh(pos));
+		for(int i = 0; i < 4; i++) {
+			long adjacent = BlockPos.offset(pos, HORIZONTAL[i]);
+			var newState = this.world.refresh(adjacent);
+			if(newState != oldStates[i + 1]) {
+				this.applyChange(adjacent, oldStates[i + 1], newState);
+			}
+		}
+	}
+
+	/**
+	 * Updates the index and nodes after a state change, as {@link WireBlockBase} does.
+	 */
+	private void applyChange(long pos, BlockState oldState, BlockState newState) {
+		this.segments.onStateChanged(this.world, BlockPos.fromLong(pos), newState);
+		boolean wasNode = WireBlockBase.shouldHaveBlockEntity(oldState);
+		boolean isNode = WireBlockBase.shouldHaveBlockEntity(newState);
+		if(wasNode && !isNode) {
+			this.removeNode(pos);
+		}
+		if(isNode) {
+			var node = this.nodes.get(pos);
+			if(node == null) {
+				node = new SimulatedNode(pos);
+				this.nodes.put(pos, node);
+			}
+			int connected = WireBlockBase.connectionMask(newState);
+			var graphNode = this.graph.node(pos);
+			if(graphNode != null) {
+				for(int i = 0; i < 6; i++) {
+					if(graphNode.neighbors[i] != null && (connected & 1 << i) == 0) {
+						this.graph.disconnect(pos, Direction.byId(i));
+					}
+				}
+			}
+			for(int dirs = node.cursors.mask() & ~connected; dirs != 0; dirs &= dirs - 1) {
+				node.cursors.clear(Integer.numberOfTrailingZeros(dirs));
+			}
+			this.queue(node, connected);
+		}
+	}
+
+	private void removeNode(long pos) {
+		var graphNode = this.graph.node(pos);
+		if(graphNode != null) {
+			// the nodes at the other ends find their new connections
+			for(int i = 0; i < 6; i++) {
+				var neighbor = graphNode.neighbors[i];
+				var other = neighbor == null ? null : this.nodes.get(neighbor.pos);
+				if(other != null) {
+					this.queue(other, 1 << graphNode.neighborDirs[i]);
+				}
+			}
+		}
+		this.graph.removeNode(pos);
+		var node = this.nodes.remove(pos);
+		if(node != null) {
+			this.active.remove(node);
+		}
+	}
+
+	private void queue(SimulatedNode node, int dirs) {
+		if(dirs != 0) {
+			node.pending |= dirs;
+			this.active.add(node);
+		}
+	}
+
+	// ticking
+
+	private void tick() {
+		if(!this.active.isEmpty()) {
+			for(var node : this.active.toArray(new SimulatedNode[0])) {
+				for(int dirs = node.pending; dirs != 0; dirs &= dirs - 1) {
+					int dir = Integer.numberOfTrailingZeros(dirs);
+					if((node.pending & 1 << dir) == 0) {
+						// finished from the other end
+						continue;
+					}
+					if(node.cursors.has(dir)) {
+						this.step(node, dir);
+					} else {
+						this.resolve(node, dir);
+					}
+				}
+				if(node.pending == 0) {
+					this.active.remove(node);
+				}
+			}
+		}
+		this.signalsSettled = this.signals.propagate();
+		this.signals.discardChanges();
+		this.power.solveAll();
+	}
+
+	private void resolve(SimulatedNode node, int dir) {
+		this.discoverySteps++;
+		var direction = Direction.byId(dir);
+		var resolution = this.segments.resolve(this.world, BlockPos.fromLong(node.pos), this.world.getBlockState(node.pos), direction);
+		if(resolution.resolved()) {
+			var connection = resolution.connection();
+			if(connection != null) {
+				this.connect(node, dir, connection.pos().asLong(), connection.dir().getId(), connection.distance());
+			} else {
+				this.disconnect(node, dir);
+			}
+		} else {
+			node.cursors.start(dir, BlockPos.offset(node.pos, direction), direction.getOpposite().getId(), 1);
+		}
+	}
+
+	private void step(SimulatedNode node, int dir) {
+		this.discoverySteps++;
+		var cursors = node.cursors;
+		int step = cursors.step(dir, this.world.getBlockState(cursors.pos(dir)));
+		if(step == NetworkNodeBlockEntity.STEP_NODE) {
+			this.connect(node, dir, cursors.pos(dir), cursors.fromDir(dir).getId(), cursors.distance(dir));
+		} else if(step == NetworkNodeBlockEntity.STEP_BROKEN) {
+			this.disconnect(node, dir);
+		} else {
+			cursors.advance(dir, step);
+		}
+	}
+
+	private void connect(SimulatedNode node, int dir, long otherPos, int otherDir, int distance) {
+		this.graph.connect(node.pos, Direction.byId(dir), otherPos, Direction.byId(otherDir), distance);
+		node.finish(dir);
+		var other = this.nodes.get(otherPos);
+		if(other != null) {
+			other.finish(otherDir);
+		}
+	}
+
+	private void disconnect(SimulatedNode node, int dir) {
+		this.graph.disconnect(node.pos, Direction.byId(dir));
+		node.finish(dir);
+	}
+
+	/**
+	 * Discovery state of a node, standing in for {@link NetworkNodeBlockEntity}.
+	 */
+	private static final class SimulatedNode {
+		final long pos;
+
+		/**
+		 * Cursors of the directions being discovered by walking.
+		 */
+		final DiscoveryCursors cursors = new DiscoveryCursors();
+
+		/**
+		 * Directions with discovery pending.
+		 */
+		int pending;
+
+		SimulatedNode(long pos) {
+			this.pos = pos;
+		}
+
+		void finish(int dir) {
+			this.pending &= ~(1 << dir);
+			this.cursors.clear(dir);
+		}
+	}
+
+	private static final class Result {
+		int ticks;
+		long steps;
+		long totalNanos;
+		long maxNanos;
+		long peakBytes;
+		boolean converged;
+	}
+}
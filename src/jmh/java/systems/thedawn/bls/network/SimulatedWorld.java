@@ -0,0 +1,85 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import systems.thedawn.bls.block.BlsBlocks;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * A flat, fully loaded world containing only floor wires, for the network simulator.
+ */
+final class SimulatedWorld implements WireView {
+	private static final Direction[] HORIZONTAL = { Direction.NORTH, Direction.SOUTH, Direction.WEST, Direction.EAST };
+
+	private final Long2ObjectOpenHashMap<BlockState> states;
+	private final BlockState air;
+
+	SimulatedWorld() {
+		this.air = Blocks.AIR.getDefaultState();
+		this.states = new Long2ObjectOpenHashMap<>();
+		this.states.defaultReturnValue(this.air);
+	}
+
+	@Override
+	public BlockState getBlockState(BlockPos pos) {
+		return this.states.get(pos.asLong());
+	}
+
+	public BlockState getBlockState(long pos) {
+		return this.states.get(pos);
+	}
+
+	@Override
+	public boolean isLoaded(BlockPos pos) {
+		return true;
+	}
+
+	public boolean hasWire(long pos) {
+		return this.states.containsKey(pos);
+	}
+
+	public int wireCount() {
+		return this.states.size();
+	}
+
+	/**
+	 * Places a wire without fixing up its neighbors.
+	 */
+	public void putWire(long pos) {
+		this.states.put(pos, BlsBlocks.WIRE.getDefaultState());
+	}
+
+	public void removeWire(long pos) {
+		this.states.remove(pos);
+	}
+
+	/**
+	 * Recomputes the connections of the wire at the given position from its neighbors, as wire placement
+	 * and shape updates would.
+	 *
+	 * @return The new state, or air if there is no wire.
+	 */
+	public BlockState refresh(long pos) {
+		if(!this.hasWire(pos)) {
+			return this.air;
+		}
+		// floor wires connect forward to the north, backward to the south, left to the west and right to the east
+		var state = BlsBlocks.WIRE.getDefaultState().with(WireBlockBase.FACING, Direction.UP);
+		for(int i = 0; i < HORIZONTAL.length; i++) {
+			state = state.with(WireBlockBase.CONNECTIONS.get(i), this.hasWire(BlockPos.offset(pos, HORIZONTAL[i])));
+		}
+		this.states.put(pos, state);
+		return state;
+	}
+}
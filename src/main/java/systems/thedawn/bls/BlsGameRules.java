@@ -0,0 +1,41 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls;
+
+import net.fabricmc.fabric.api.gamerule.v1.GameRuleFactory;
+import net.fabricmc.fabric.api.gamerule.v1.GameRuleRegistry;
+import net.minecraft.world.GameRules;
+
+public final class BlsGameRules {
+	/**
+	 * Milliseconds per tick that network nodes may spend on discovery in each world. Work left over
+	 * when the budget runs out carries over to the next tick. Only discovery is budgeted: signal
+	 * propagation has a fixed cap of its own, and neighbor updates, power solving, client sync and the
+	 * graph store finish every tick.
+	 */
+	public static final GameRules.Key<GameRules.IntRule> NETWORK_TICK_BUDGET =
+		GameRuleRegistry.register("blsNetworkTickBudget", GameRules.Category.UPDATES, GameRuleFactory.createIntRule(5, 1, 50));
+
+	/**
+	 * Whether discovery cursors are walked on worker threads over snapshots of the world.
+	 */
+	public static final GameRules.Key<GameRules.BooleanRule> PARALLEL_DISCOVERY =
+		GameRuleRegistry.register("blsParallelDiscovery", GameRules.Category.UPDATES, GameRuleFactory.createBooleanRule(false));
+
+	/**
+	 * Whether node data is mirrored into a memory-mapped graph file in each dimension's data directory.
+	 */
+	public static final GameRules.Key<GameRules.BooleanRule> GRAPH_STORE =
+		GameRuleRegistry.register("blsGraphStore", GameRules.Category.UPDATES, GameRuleFactory.createBooleanRule(false));
+
+	private BlsGameRules() {}
+
+	public static void init() {
+		// registers the rules
+	}
+}
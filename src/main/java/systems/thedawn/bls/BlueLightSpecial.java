@@ -12,7 +12,9 @@ import org.quiltmc.qsl.base.api.entrypoint.ModInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import systems.thedawn.bls.block.BlsBlocks;
+import systems.thedawn.bls.command.BlsCommand;
 import systems.thedawn.bls.item.BlsItems;
+import systems.thedawn.bls.network.WorldNetworks;
 
 import net.minecraft.util.Identifier;
 
@@ -26,6 +28,9 @@ public class BlueLightSpecial implements ModInitializer {
 		modId = mod.metadata().id();
 		BlsBlocks.init();
 		BlsItems.init();
+		BlsGameRules.init();
+		WorldNetworks.init();
+		BlsCommand.init();
 	}
 
 	public static Identifier id(String path) {
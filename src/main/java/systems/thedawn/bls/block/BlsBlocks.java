@@ -22,6 +22,7 @@ public final class BlsBlocks {
 	private BlsBlocks() {}
 
 	public static void init() {
+		NetworkComponents.init();
 		registerBlockItem("wire", WIRE);
 		Registry.register(Registry.BLOCK_ENTITY_TYPE, BlueLightSpecial.id("network_node"), NetworkNodeBlockEntity.TYPE);
 	}
@@ -0,0 +1,166 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.block;
+
+import systems.thedawn.bls.network.NetworkComponentData;
+import systems.thedawn.bls.network.SegmentWalks;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * The discovery cursors of a node, one per source direction, walking along wires to find the node at
+ * the other end of each connection. Used by {@link NetworkNodeBlockEntity}, and by anything else that
+ * needs to walk wires the same way.
+ */
+public final class DiscoveryCursors {
+	/**
+	 * The directions with a cursor, as bits indexed by direction ID.
+	 */
+	private int mask;
+
+	/**
+	 * Positions of the cursors, by source direction ID.
+	 */
+	private final long[] positions;
+
+	/**
+	 * Direction IDs of the previous position of each cursor, by source direction ID.
+	 */
+	private final byte[] fromDirs;
+
+	/**
+	 * Wire distance from the node to each cursor, by source direction ID.
+	 */
+	private final int[] distances;
+
+	/**
+	 * Segment walk IDs of each cursor, by source direction ID, or 0 if the cursor has not claimed any
+	 * wires yet. See {@link SegmentWalks}.
+	 */
+	private final int[] walks;
+
+	public DiscoveryCursors() {
+		this.positions = new long[6];
+		this.fromDirs = new byte[6];
+		this.distances = new int[6];
+		this.walks = new int[6];
+	}
+
+	public int mask() {
+		return this.mask;
+	}
+
+	public boolean has(int dir) {
+		return (this.mask & 1 << dir) != 0;
+	}
+
+	public long pos(int dir) {
+		return this.positions[dir];
+	}
+
+	public Direction fromDir(int dir) {
+		return Direction.byId(this.fromDirs[dir]);
+	}
+
+	public int distance(int dir) {
+		return this.distances[dir];
+	}
+
+	public int walk(int dir) {
+		return this.walks[dir];
+	}
+
+	public void setWalk(int dir, int walk) {
+		this.walks[dir] = walk;
+	}
+
+	/**
+	 * Places the cursor for a source direction, keeping its segment walk.
+	 */
+	public void set(int dir, long pos, int fromDir, int distance) {
+		this.mask |= 1 << dir;
+		this.positions[dir] = pos;
+		this.fromDirs[dir] = (byte)fromDir;
+		this.distances[dir] = distance;
+	}
+
+	/**
+	 * Places the cursor for a source direction as a new walk.
+	 */
+	public void start(int dir, long pos, int fromDir, int distance) {
+		this.set(dir, pos, fromDir, distance);
+		this.walks[dir] = 0;
+	}
+
+	public void clear(int dir) {
+		this.mask &= ~(1 << dir);
+	}
+
+	public void clearAll() {
+		this.mask = 0;
+	}
+
+	/**
+	 * Whether the cursor for a source direction is where it was.
+	 */
+	public boolean isAt(int dir, long pos, Direction fromDir, int distance) {
+		return this.has(dir) && this.positions[dir] == pos && this.fromDirs[dir] == fromDir.getId() && this.distances[dir] == distance;
+	}
+
+	/**
+	 * Determines where the cursor for a source direction goes from the state at its position. See
+	 * {@link NetworkNodeBlockEntity#stepDiscovery}.
+	 */
+	public int step(int dir, BlockState state) {
+		return NetworkNodeBlockEntity.stepDiscovery(state, this.fromDir(dir));
+	}
+
+	/**
+	 * Moves the cursor for a source direction one block along the wire.
+	 *
+	 * @param step The direction ID returned by {@link #step}.
+	 */
+	public void advance(int dir, int step) {
+		var next = Direction.byId(step);
+		this.positions[dir] = BlockPos.offset(this.positions[dir], next);
+		this.fromDirs[dir] = (byte)next.getOpposite().getId();
+		this.distances[dir]++;
+	}
+
+	/**
+	 * Packs the cursors as pairs of longs, the position relative to the node and the directions and
+	 * distance.
+	 */
+	public long[] pack(long origin) {
+		var packed = new long[Integer.bitCount(this.mask) * 2];
+		int i = 0;
+		for(int dirs = this.mask; dirs != 0; dirs &= dirs - 1) {
+			int dir = Integer.numberOfTrailingZeros(dirs);
+			packed[i++] = NetworkComponentData.packOffset(origin, this.positions[dir]);
+			packed[i++] = dir | this.fromDirs[dir] << 3 | (long)this.distances[dir] << 32;
+		}
+		return packed;
+	}
+
+	/**
+	 * Replaces the cursors with ones packed by {@link #pack}, skipping any with invalid directions.
+	 */
+	public void unpack(long origin, long[] packed) {
+		this.mask = 0;
+		for(int i = 0; i + 1 < packed.length; i += 2) {
+			long bits = packed[i + 1];
+			int dir = (int)bits & 7;
+			int fromDir = (int)(bits >>> 3) & 7;
+			if(dir < 6 && fromDir < 6) {
+				this.set(dir, NetworkComponentData.unpackOffset(origin, packed[i]), fromDir, (int)(bits >>> 32));
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.block;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.World;
+
+/**
+ * Implemented by blocks that take part in networks. The answers for every state of every registered
+ * component are collected into lookup tables by {@link NetworkComponents} when the game starts, so
+ * these methods must depend only on the state.
+ * <p>
+ * Node states of a component must have a {@link NetworkNodeBlockEntity}, which supports every
+ * component. Components must call {@link NetworkComponents#onStateAdded},
+ * {@link NetworkComponents#onStateReplaced} and {@link NetworkComponents#onNeighborUpdate} from
+ * {@code onBlockAdded}, {@code onStateReplaced} and {@code neighborUpdate}, so that networks see their
+ * changes.
+ */
+public interface NetworkComponent {
+	/**
+	 * The face of the block space the state is attached to.
+	 */
+	Direction getFace(BlockState state);
+
+	/**
+	 * The (absolute) directions in which the state is connected, as bits indexed by direction ID.
+	 */
+	int getConnectionMask(BlockState state);
+
+	/**
+	 * Whether the state is a node, which stores network data and ends the segments it connects to.
+	 * By default, states with one, three, or four connections are nodes.
+	 */
+	default boolean isNode(BlockState state) {
+		int count = Integer.bitCount(this.getConnectionMask(state));
+		return count != 0 && count != 2;
+	}
+
+	/**
+	 * Whether the state can possibly connect to a state of another component. By default, components
+	 * connect to components on the same face.
+	 *
+	 * @param state          A state of this component.
+	 * @param otherComponent The other component.
+	 * @param other          A state of the other component.
+	 */
+	default boolean canConnectTo(BlockState state, NetworkComponent otherComponent, BlockState other) {
+		return this.getFace(state) == otherComponent.getFace(other);
+	}
+
+	/**
+	 * Whether the node at the given position feeds signal into its network. Read at the end of the tick
+	 * the node loads or is updated. By default, nodes receiving redstone power are sources.
+	 */
+	default boolean isSignalSource(World world, BlockPos pos, BlockState state) {
+		return NetworkComponents.receivedRedstonePower(world, pos) > 0;
+	}
+
+	/**
+	 * The power the node at the given position supplies to its network, read along with
+	 * {@link #isSignalSource}. By default, nodes supply the redstone power they receive.
+	 */
+	default int getPowerSupply(World world, BlockPos pos, BlockState state) {
+		return NetworkComponents.receivedRedstonePower(world, pos);
+	}
+
+	/**
+	 * The power the node at the given position takes from its network, read along with
+	 * {@link #isSignalSource}. By default, nodes only carry power and take none.
+	 */
+	default int getPowerDemand(World world, BlockPos pos, BlockState state) {
+		return 0;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.block;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.BlueLightSpecial;
+import systems.thedawn.bls.network.DiscoveryParking;
+import systems.thedawn.bls.network.WorldNetworks;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.registry.RegistryEntryAddedCallback;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.world.World;
+
+/**
+ * Lookup tables for the states of every registered {@link NetworkComponent}, and the block hooks that
+ * keep networks up to date as components change. The tables are built once, by {@link #freeze()}, when
+ * the server or client starts and every mod has registered its blocks. Each component state gets an
+ * index, and whether two states can connect is one bit in a table of every pair of states.
+ * <p>
+ * Safe to use from any thread once built; lookups for blocks that aren't components answer as if
+ * nothing can connect.
+ */
+public final class NetworkComponents {
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	@Nullable
+	private static Table table;
+
+	private NetworkComponents() {
+	}
+
+	public static void init() {
+		ServerLifecycleEvents.SERVER_STARTING.register(server -> freeze());
+		RegistryEntryAddedCallback.event(Registry.BLOCK).register((rawId, id, block) -> {
+			if(block instanceof NetworkComponent && table != null) {
+				BlueLightSpecial.LOGGER.warn("Network component {} was registered too late and won't join networks", id);
+			}
+		});
+	}
+
+	/**
+	 * Builds the tables from the components registered so far, if not built already. Components
+	 * registered afterwards are not included.
+	 */
+	public static synchronized void freeze() {
+		if(table == null) {
+			table = new Table();
+		}
+	}
+
+	private static Table table() {
+		var current = table;
+		if(current == null) {
+			throw new IllegalStateException("Network components used before they were frozen");
+		}
+		return current;
+	}
+
+	/**
+	 * Whether the state belongs to a network component.
+	 */
+	public static boolean isComponent(BlockState state) {
+		return table().index(state) >= 0;
+	}
+
+	/**
+	 * The face a component state is attached to.
+	 *
+	 * @throws IllegalArgumentException If the state is not a component.
+	 */
+	public static Direction face(BlockState state) {
+		var table = table();
+		int index = table.index(state);
+		if(index < 0) {
+			throw new IllegalArgumentException("Not a network component: " + state);
+		}
+		return table.faces[index];
+	}
+
+	/**
+	 * The (absolute) directions in which the state is connected, as bits indexed by direction ID, or 0
+	 * if the state is not a component.
+	 */
+	public static int connectionMask(BlockState state) {
+		var table = table();
+		int index = table.index(state);
+		return index >= 0 ? table.connectionMasks[index] : 0;
+	}
+
+	/**
+	 * Whether the state is a component node.
+	 */
+	public static boolean isNode(BlockState state) {
+		var table = table();
+		int index = table.index(state);
+		return index >= 0 && table.nodes.get(index);
+	}
+
+	/**
+	 * Whether the state is a component state with exactly two connections, which is part of a segment
+	 * between nodes.
+	 */
+	public static boolean isSegmentWire(BlockState state) {
+		var table = table();
+		int index = table.index(state);
+		return index >= 0 && !table.nodes.get(index) && Integer.bitCount(table.connectionMasks[index]) == 2;
+	}
+
+	/**
+	 * Whether two states can possibly connect, which both of their components must agree to.
+	 */
+	public static boolean canConnect(BlockState state, BlockState other) {
+		var table = table();
+		int index = table.index(state);
+		int otherIndex = table.index(other);
+		return index >= 0 && otherIndex >= 0 && table.connectable.get(index * table.size + otherIndex);
+	}
+
+	/**
+	 * Updates networks for a component state that was just added. Components call this from
+	 * {@link Block#onBlockAdded}.
+	 */
+	public static void onStateAdded(World world, BlockPos pos, BlockState oldState, BlockState state) {
+		if(world instanceof ServerWorld serverWorld) {
+			var networks = WorldNetworks.get(serverWorld);
+			networks.segments().onStateChanged(networks.view(), pos, state);
+			networks.parallelDiscovery().onBlockChanged(pos);
+			if(oldState != state) {
+				// the node may need to be removed or discovered, which also covers placement without block updates
+				networks.neighborUpdates().markDirty(pos, null);
+			}
+		}
+	}
+
+	/**
+	 * Updates networks for a component state that was just replaced. Components call this from
+	 * {@link Block#onStateReplaced}.
+	 */
+	public static void onStateReplaced(World world, BlockPos pos, BlockState newState) {
+		// changes from one component state to another are handled when the new state is added
+		if(world instanceof ServerWorld serverWorld && !(newState.getBlock() instanceof NetworkComponent)) {
+			var networks = WorldNetworks.get(serverWorld);
+			networks.segments().onStateChanged(networks.view(), pos, newState);
+			networks.parallelDiscovery().onBlockChanged(pos);
+			networks.graph().removeNode(pos.asLong());
+		}
+	}
+
+	/**
+	 * Queues an update for a component after a neighbor changed. Components call this from
+	 * {@link Block#neighborUpdate}.
+	 */
+	public static void onNeighborUpdate(World world, BlockPos pos, BlockPos fromPos) {
+		// the rest of the update requires current state, so it happens at the end of the tick
+		if(world instanceof ServerWorld serverWorld) {
+			WorldNetworks.get(serverWorld).neighborUpdates().markDirty(pos, Direction.fromVector(fromPos.subtract(pos)));
+		}
+	}
+
+	/**
+	 * The strongest redstone power the given position receives from its neighbors. Neighbors in
+	 * unloaded chunks are skipped rather than loaded.
+	 */
+	public static int receivedRedstonePower(World world, BlockPos pos) {
+		var neighbor = new BlockPos.Mutable();
+		int power = 0;
+		for(var dir : DIRECTIONS) {
+			neighbor.set(pos, dir);
+			if(DiscoveryParking.isLoaded(world, neighbor)) {
+				power = Math.max(power, world.getEmittedRedstonePower(neighbor, dir));
+			}
+		}
+		return power;
+	}
+
+	private static final class Table {
+		final Reference2IntOpenHashMap<BlockState> indices;
+		final int size;
+		final Direction[] faces;
+		final int[] connectionMasks;
+		final BitSet nodes;
+		final BitSet connectable;
+
+		Table() {
+			// this mod's blocks are included even if unregistered, as in benchmarks
+			var blocks = new LinkedHashSet<Block>();
+			blocks.add(BlsBlocks.WIRE);
+			for(var block : Registry.BLOCK) {
+				if(block instanceof NetworkComponent) {
+					blocks.add(block);
+				}
+			}
+			var components = new ArrayList<NetworkComponent>();
+			var states = new ArrayList<BlockState>();
+			for(var block : blocks) {
+				for(var state : block.getStateManager().getStates()) {
+					components.add((NetworkComponent)block);
+					states.add(state);
+				}
+			}
+			this.size = states.size();
+			this.indices = new Reference2IntOpenHashMap<>(this.size);
+			this.indices.defaultReturnValue(-1);
+			this.faces = new Direction[this.size];
+			this.connectionMasks = new int[this.size];
+			this.nodes = new BitSet(this.size);
+			for(int i = 0; i < this.size; i++) {
+				var state = states.get(i);
+				var component = components.get(i);
+				this.indices.put(state, i);
+				this.faces[i] = component.getFace(state);
+				this.connectionMasks[i] = component.getConnectionMask(state);
+				this.nodes.set(i, component.isNode(state));
+			}
+			this.connectable = new BitSet(this.size * this.size);
+			for(int i = 0; i < this.size; i++) {
+				for(int j = 0; j <= i; j++) {
+					if(components.get(i).canConnectTo(states.get(i), components.get(j), states.get(j)) &&
+						components.get(j).canConnectTo(states.get(j), components.get(i), states.get(i))) {
+						this.connectable.set(i * this.size + j);
+						this.connectable.set(j * this.size + i);
+					}
+				}
+			}
+		}
+
+		int index(BlockState state) {
+			return this.indices.getInt(state);
+		}
+	}
+}
@@ -7,21 +7,27 @@
  */
 package systems.thedawn.bls.block;
 
-import java.util.Collection;
-import java.util.EnumMap;
-import java.util.EnumSet;
+import java.util.Set;
 
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.network.DiscoveryParking;
 import systems.thedawn.bls.network.NetworkComponentData;
+import systems.thedawn.bls.network.NodeSync;
+import systems.thedawn.bls.network.ParallelDiscovery;
+import systems.thedawn.bls.network.WorldNetworks;
 
-import net.fabricmc.fabric.api.object.builder.v1.block.entity.FabricBlockEntityTypeBuilder;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.block.entity.BlockEntityType;
-import net.minecraft.nbt.NbtByteArray;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtElement;
-import net.minecraft.nbt.NbtList;
+import net.minecraft.network.Packet;
+import net.minecraft.network.listener.ClientPlayPacketListener;
+import net.minecraft.network.packet.s2c.play.BlockEntityUpdateS2CPacket;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.world.World;
 
@@ -30,11 +36,40 @@ import net.minecraft.world.World;
  */
 public class NetworkNodeBlockEntity extends BlockEntity {
 
+	/**
+	 * The type of every node, which supports the blocks of every {@link NetworkComponent}, including
+	 * components registered by other mods after this type.
+	 */
 	public static final BlockEntityType<NetworkNodeBlockEntity> TYPE =
-		FabricBlockEntityTypeBuilder.create(NetworkNodeBlockEntity::new, BlsBlocks.WIRE).build();
+		new BlockEntityType<>(NetworkNodeBlockEntity::new, Set.of(BlsBlocks.WIRE), null) {
+			@Override
+			public boolean supports(BlockState state) {
+				return state.getBlock() instanceof NetworkComponent;
+			}
+		};
+
+	/**
+	 * Result of {@link #stepDiscovery(BlockState, Direction)} when discovery reached a node.
+	 */
+	public static final int STEP_NODE = -1;
+
+	/**
+	 * Result of {@link #stepDiscovery(BlockState, Direction)} when the wire is broken.
+	 */
+	public static final int STEP_BROKEN = -2;
+
+	private static final String CURSORS = "Cursors";
+	private static final String QUEUED = "Queued";
 
+	// format 0 keys
 	private static final String DISCOVERY_STATE = "Discovery";
 	private static final String QUEUED_DISCOVERY = "QueuedDiscovery";
+	private static final String SOURCE_DIR = "SourceDir";
+	private static final String POS_X = "X";
+	private static final String POS_Y = "Y";
+	private static final String POS_Z = "Z";
+	private static final String FROM_DIR = "FromDir";
+	private static final String DISTANCE = "Distance";
 
 	/**
 	 * Data about this node and its connections.
@@ -42,28 +77,65 @@ public class NetworkNodeBlockEntity extends BlockEntity {
 	public final NetworkComponentData componentData;
 
 	/**
-	 * Positions of the cursors where connections are currently being found.
+	 * The cursors where connections are currently being found.
 	 */
-	private final EnumMap<Direction, DiscoveryData> discoveryState;
+	private final DiscoveryCursors cursors;
 
 	/**
-	 * Discovery that should begin on the next tick.
+	 * Discovery that should begin on the next tick, as bits indexed by direction ID.
 	 */
-	private final EnumSet<Direction> queuedDiscovery;
+	private int queuedMask;
+
+	/**
+	 * The cursors waiting for their chunk to load, as bits indexed by direction ID. Not saved, as cursors
+	 * park again when the node next ticks.
+	 */
+	private int parkedMask;
+
+	/**
+	 * The cursors being walked on worker threads, as bits indexed by direction ID. Not saved, as the
+	 * walks start over from the saved cursors.
+	 */
+	private int walkingMask;
 
 	public NetworkNodeBlockEntity(BlockPos blockPos, BlockState blockState) {
 		super(TYPE, blockPos, blockState);
 		this.componentData = new NetworkComponentData();
-		this.discoveryState = new EnumMap<>(Direction.class);
-		this.queuedDiscovery = EnumSet.noneOf(Direction.class);
+		this.cursors = new DiscoveryCursors();
 	}
 
 	/**
 	 * Initiates the connected node discovery process in the given direction.
 	 */
 	public void startDiscovery(Direction dir) {
-		this.startDiscoveryAt(dir, this.pos.offset(dir), dir.getOpposite(), 1);
-		this.queuedDiscovery.remove(dir);
+		if(!this.resolveDiscovery(dir)) {
+			this.startDiscoveryAt(dir, this.pos.offset(dir), dir.getOpposite(), 1);
+		}
+		this.queuedMask &= ~(1 << dir.getId());
+	}
+
+	/**
+	 * Attempts to find the connected node in the given direction immediately using the segment index.
+	 *
+	 * @return Whether the connection was resolved.
+	 */
+	public boolean resolveDiscovery(Direction dir) {
+		if(!(this.world instanceof ServerWorld serverWorld)) {
+			return false;
+		}
+		var networks = WorldNetworks.get(serverWorld);
+		var resolution = networks.segments().resolve(networks.view(), this.pos, this.getCachedState(), dir);
+		if(!resolution.resolved()) {
+			return false;
+		}
+		networks.stats().recordResolvedDiscovery();
+		var connection = resolution.connection();
+		if(connection == null) {
+			this.breakConnection(dir);
+		} else {
+			this.connect(dir, connection);
+		}
+		return true;
 	}
 
 	/**
@@ -75,119 +147,352 @@ public class NetworkNodeBlockEntity extends BlockEntity {
 	 * @param distance The path distance to the current position.
 	 */
 	public void startDiscoveryAt(Direction srcDir, BlockPos pos, Direction dstDir, int distance) {
-		var data = new DiscoveryData();
-		data.pos = pos;
-		data.fromDir = dstDir;
-		data.distance = distance;
-		this.discoveryState.put(srcDir, data);
+		this.cursors.start(srcDir.getId(), pos.asLong(), dstDir.getId(), distance);
+		this.parkedMask &= ~(1 << srcDir.getId());
+		this.schedule();
+	}
+
+	private void clearDiscovery(Direction dir) {
+		this.cursors.clear(dir.getId());
+		this.queuedMask &= ~(1 << dir.getId());
+		this.parkedMask &= ~(1 << dir.getId());
+		this.walkingMask &= ~(1 << dir.getId());
+	}
+
+	/**
+	 * Resumes the parked cursors in a newly loaded chunk.
+	 *
+	 * @return Whether any cursors were resumed.
+	 */
+	public boolean resumeDiscovery(ChunkPos chunkPos) {
+		int resumed = 0;
+		for(int dirs = this.parkedMask; dirs != 0; dirs &= dirs - 1) {
+			int dir = Integer.numberOfTrailingZeros(dirs);
+			long pos = this.cursors.pos(dir);
+			if(ChunkSectionPos.getSectionCoord(BlockPos.unpackLongX(pos)) == chunkPos.x &&
+				ChunkSectionPos.getSectionCoord(BlockPos.unpackLongZ(pos)) == chunkPos.z) {
+				resumed |= 1 << dir;
+			}
+		}
+		this.parkedMask &= ~resumed;
+		return resumed != 0;
+	}
+
+	/**
+	 * Removes this node's parked cursors from the parking, e.g. because this node is unloading.
+	 */
+	public void unparkDiscovery(DiscoveryParking parking) {
+		var cursor = new BlockPos.Mutable();
+		for(int dirs = this.parkedMask; dirs != 0; dirs &= dirs - 1) {
+			cursor.set(this.cursors.pos(Integer.numberOfTrailingZeros(dirs)));
+			parking.unpark(this, ChunkPos.toLong(ChunkSectionPos.getSectionCoord(cursor.getX()), ChunkSectionPos.getSectionCoord(cursor.getZ())));
+		}
+		this.parkedMask = 0;
+	}
+
+	/**
+	 * Queues discovery in every connected direction without a known connection or discovery in progress.
+	 * Connections can go missing if the other node changed while this node was unloaded.
+	 */
+	public void queueMissingDiscovery() {
+		int missing = WireBlockBase.connectionMask(this.getCachedState()) & ~this.componentData.connectionMask() & ~this.cursors.mask();
+		if(missing != 0) {
+			this.queuedMask |= missing;
+			this.schedule();
+			if(this.world instanceof ServerWorld serverWorld) {
+				WorldNetworks.get(serverWorld).stats().recordQueuedDiscovery(Integer.bitCount(missing));
+			}
+		}
 	}
 
 	/**
 	 * Queue the connected node discovery process in the given direction for the next tick.
 	 */
 	public void queueDiscovery(Direction dir) {
-		this.queuedDiscovery.add(dir);
+		this.queuedMask |= 1 << dir.getId();
+		this.schedule();
+		if(this.world instanceof ServerWorld serverWorld) {
+			WorldNetworks.get(serverWorld).stats().recordQueuedDiscovery(1);
+		}
+	}
+
+	/**
+	 * The number of directions with discovery in progress, including parked cursors.
+	 */
+	public int cursorCount() {
+		return Integer.bitCount(this.cursors.mask());
+	}
+
+	/**
+	 * Whether discovery in the given direction is still the given segment walk.
+	 */
+	public boolean isWalking(Direction dir, int walkId) {
+		return this.cursors.has(dir.getId()) && this.cursors.walk(dir.getId()) == walkId;
 	}
 
+	/**
+	 * Whether this node has discovery in progress or queued.
+	 */
+	public boolean hasPendingWork() {
+		return (this.cursors.mask() & ~this.parkedMask & ~this.walkingMask | this.queuedMask) != 0;
+	}
+
+	private void schedule() {
+		if(this.world instanceof ServerWorld serverWorld) {
+			WorldNetworks.get(serverWorld).scheduler().enroll(this);
+		}
+	}
+
+	/**
+	 * Sets the connection in the given direction. Finding the connection already known changes nothing,
+	 * so the epoch stays the same and nothing is reported.
+	 */
 	public void updateConnection(Direction dir, NetworkComponentData.Connection connection) {
+		this.clearDiscovery(dir);
+		if(connection.equals(this.componentData.connection(dir))) {
+			return;
+		}
 		this.componentData.updateConnection(dir, connection);
-		this.discoveryState.remove(dir);
-		this.queuedDiscovery.remove(dir);
+		this.componentData.advanceEpoch();
+		this.markChanged(NodeSync.CONNECTIONS);
+		if(this.world instanceof ServerWorld serverWorld) {
+			var graph = WorldNetworks.get(serverWorld).graph();
+			graph.connect(this.pos.asLong(), dir, connection.pos().asLong(), connection.dir(), connection.distance());
+		}
+	}
+
+	/**
+	 * Connects this node to another node, updating the connection on the other end as well.
+	 */
+	private void connect(Direction dir, NetworkComponentData.Connection connection) {
+		this.updateConnection(dir, connection);
+		// an unloaded node picks up the connection from the graph when it loads
+		var otherNode = this.getLoadedNode(connection.pos());
+		if(otherNode != null) {
+			var facing = NetworkComponents.face(this.getCachedState());
+			var reverseConnection = new NetworkComponentData.Connection(dir, this.pos, facing, connection.distance());
+			otherNode.updateConnection(connection.dir(), reverseConnection);
+			// both ends have seen each other's latest epoch
+			this.componentData.setLinkEpoch(dir, otherNode.componentData.epoch());
+			otherNode.componentData.setLinkEpoch(connection.dir(), this.componentData.epoch());
+		}
 	}
 
 	/**
 	 * Breaks any connection in the given direction.
 	 */
 	public void breakConnection(Direction dir) {
+		boolean connected = this.componentData.hasConnection(dir);
 		this.componentData.removeConnection(dir);
-		this.discoveryState.remove(dir);
-		this.queuedDiscovery.remove(dir);
+		this.clearDiscovery(dir);
+		if(connected) {
+			this.componentData.advanceEpoch();
+			this.markChanged(NodeSync.CONNECTIONS);
+		}
+		if(this.world instanceof ServerWorld serverWorld) {
+			WorldNetworks.get(serverWorld).graph().disconnect(this.pos.asLong(), dir);
+		}
+	}
+
+	/**
+	 * Marks this node as changed, to be saved and to have the given fields sent to clients, subscribers, and the graph store.
+	 *
+	 * @param fields The changed fields, see {@link NodeSync}.
+	 */
+	public void markChanged(int fields) {
+		this.markDirty();
+		if(this.world instanceof ServerWorld serverWorld) {
+			var networks = WorldNetworks.get(serverWorld);
+			networks.sync().markDirty(this.pos, fields);
+			networks.events().markChanged(this.pos, fields);
+			networks.store().markChanged(this.pos, this.componentData.epoch());
+		}
+	}
+
+	/**
+	 * Reads this node's inputs from the blocks around it into the graph.
+	 */
+	public void updateInputs(ServerWorld world) {
+		var state = this.getCachedState();
+		if(state.getBlock() instanceof NetworkComponent component) {
+			var networks = WorldNetworks.get(world);
+			long pos = this.pos.asLong();
+			networks.signals().setSource(pos, component.isSignalSource(world, this.pos, state));
+			networks.power().setSupply(pos, component.getPowerSupply(world, this.pos, state));
+			networks.power().setDemand(pos, component.getPowerDemand(world, this.pos, state));
+		}
 	}
 
 	/**
 	 * Whether this block entity doesn't have any state yet.
 	 */
 	public boolean isEmpty() {
-		return this.componentData.connectionCount() == 0 && this.discoveryState.isEmpty();
+		return this.componentData.connectionCount() == 0 && this.cursors.mask() == 0;
 	}
 
 	public static void tick(World world, BlockPos pos, BlockState state, NetworkNodeBlockEntity self) {
-		for(var itr = self.discoveryState.entrySet().iterator(); itr.hasNext(); ) {
-			var entry = itr.next();
-			var dir = entry.getKey();
-			var data = entry.getValue();
-			if(self.tickDiscovery(world, dir, data)) {
-				itr.remove();
+		var cursor = new BlockPos.Mutable();
+		boolean parallel = world instanceof ServerWorld serverWorld && ParallelDiscovery.isEnabled(serverWorld);
+		for(int dirs = self.cursors.mask() & ~self.parkedMask & ~self.walkingMask; dirs != 0; dirs &= dirs - 1) {
+			int dir = Integer.numberOfTrailingZeros(dirs);
+			// discovery may have finished for other directions along the way
+			if(self.cursors.has(dir) && self.tickDiscovery(world, Direction.byId(dir), cursor, parallel)) {
+				self.cursors.clear(dir);
 			}
 		}
-		for(var dir : self.queuedDiscovery) {
+		int queued = self.queuedMask;
+		self.queuedMask = 0;
+		for(; queued != 0; queued &= queued - 1) {
+			var dir = Direction.byId(Integer.numberOfTrailingZeros(queued));
 			// only start discovery if we actually have a connection
 			if(WireBlockBase.hasConnectionInAbsolute(state, dir)) {
 				self.startDiscovery(dir);
 			}
 		}
-		self.queuedDiscovery.clear();
 	}
 
 	/**
 	 * Performs a single step of the discovery process for a particular direction.
 	 *
 	 * @param sourceDir The direction from the source node.
-	 * @param data      Current discovery data.
+	 * @param cursor    Scratch position for the cursor.
+	 * @param parallel  Whether to walk the cursor on a worker thread instead.
 	 * @return Whether discovery should stop for this direction.
 	 */
-	private boolean tickDiscovery(World world, Direction sourceDir, DiscoveryData data) {
-		var currentState = world.getBlockState(data.pos);
+	private boolean tickDiscovery(World world, Direction sourceDir, BlockPos.Mutable cursor, boolean parallel) {
+		int i = sourceDir.getId();
+		var fromDir = this.cursors.fromDir(i);
+		cursor.set(this.cursors.pos(i));
+		if(!DiscoveryParking.isLoaded(world, cursor)) {
+			// wait for the chunk to load instead of loading it
+			if(world instanceof ServerWorld serverWorld) {
+				this.parkedMask |= 1 << i;
+				WorldNetworks.get(serverWorld).parking().park(this, cursor);
+			}
+			return false;
+		}
+		if(parallel && world instanceof ServerWorld serverWorld) {
+			this.walkingMask |= 1 << i;
+			var networks = WorldNetworks.get(serverWorld);
+			networks.parallelDiscovery().submit(serverWorld, this, sourceDir, this.cursors.pos(i), fromDir, this.cursors.distance(i));
+			return false;
+		}
+		var networks = world instanceof ServerWorld serverWorld ? WorldNetworks.get(serverWorld) : null;
+		var currentState = networks != null ? networks.parking().getBlockState(world, cursor) : world.getBlockState(cursor);
 		this.markDirty();
-		// todo interface
-		if(currentState.getBlock() == BlsBlocks.WIRE) {
-			var currentFace = currentState.get(WireBlockBase.FACING);
-			// determine whether the current state is a node
-			if(WireBlockBase.shouldHaveBlockEntity(currentState)) {
-				// it's a node, finish discovery
-				var connection = new NetworkComponentData.Connection(data.fromDir, data.pos, currentFace, data.distance);
-				this.componentData.updateConnection(sourceDir, connection);
-				// update the connection on the other end as well
-				var otherNode = TYPE.get(world, data.pos);
-				if(otherNode != null) {
-					var facing = this.getCachedState().get(WireBlockBase.FACING);
-					var reverseConnection = new NetworkComponentData.Connection(sourceDir, this.pos, facing, data.distance);
-					otherNode.updateConnection(data.fromDir, reverseConnection);
-				}
-				return true;
+		if(networks != null) {
+			networks.stats().recordDiscoveryStep();
+		}
+		int step = this.cursors.step(i, currentState);
+		if(step == STEP_NODE) {
+			// it's a node, finish discovery
+			var currentFace = NetworkComponents.face(currentState);
+			this.connect(sourceDir, new NetworkComponentData.Connection(fromDir, cursor.toImmutable(), currentFace, this.cursors.distance(i)));
+			return true;
+		}
+		if(step == STEP_BROKEN) {
+			this.breakConnection(sourceDir);
+			return true;
+		}
+		if(networks != null) {
+			var walks = networks.segmentWalks();
+			if(this.cursors.walk(i) == 0) {
+				this.cursors.setWalk(i, walks.newWalk());
 			}
-			// if not a node, step to the next block
-			var connectionDirs = WireBlockBase.connectionDirs(currentState);
-			connectionDirs.remove(data.fromDir);
-			if(connectionDirs.size() != 1) {
-				// something got corrupted, bail and stop
-				this.breakConnection(sourceDir);
+			var met = walks.claim(this.cursors.pos(i), this, sourceDir, this.cursors.walk(i), fromDir, this.cursors.distance(i));
+			if(met != null) {
+				// the rest of the segment was walked from the other end
+				var other = met.node();
+				var otherFace = NetworkComponents.face(other.getCachedState());
+				this.connect(sourceDir, new NetworkComponentData.Connection(met.dir(), other.getPos(), otherFace, this.cursors.distance(i) + met.distance()));
 				return true;
 			}
-			var nextDir = connectionDirs.iterator().next();
-			data.pos = data.pos.offset(nextDir);
-			data.fromDir = nextDir.getOpposite();
-			data.distance += 1;
-			return false;
+		}
+		this.cursors.advance(i, step);
+		return false;
+	}
+
+	/**
+	 * Applies the result of walking a cursor on a worker thread. Ignored if the cursor was moved or
+	 * restarted since the walk began.
+	 *
+	 * @param sourceDir The direction from this node.
+	 * @param startPos  The position the walk started from.
+	 * @param outcome   {@link #STEP_NODE}, {@link #STEP_BROKEN}, or {@link ParallelDiscovery#WALK_INCOMPLETE}.
+	 * @param endPos    The position where the walk stopped.
+	 * @param face      The face of the node found, if any.
+	 */
+	public void completeWalk(Direction sourceDir, long startPos, Direction startFromDir, int startDistance,
+		int outcome, long endPos, Direction endFromDir, int endDistance, @Nullable Direction face) {
+		int i = sourceDir.getId();
+		this.walkingMask &= ~(1 << i);
+		if(!this.cursors.isAt(i, startPos, startFromDir, startDistance)) {
+			this.schedule();
+			return;
+		}
+		this.markDirty();
+		if(outcome == STEP_NODE) {
+			this.connect(sourceDir, new NetworkComponentData.Connection(endFromDir, BlockPos.fromLong(endPos), face, endDistance));
+		} else if(outcome == STEP_BROKEN) {
+			this.breakConnection(sourceDir);
 		} else {
+			this.cursors.set(i, endPos, endFromDir.getId(), endDistance);
+			this.schedule();
+		}
+	}
+
+	/**
+	 * Returns a cursor to ordinary discovery after its walk on a worker thread was discarded.
+	 */
+	public void abandonWalk(Direction sourceDir) {
+		this.walkingMask &= ~(1 << sourceDir.getId());
+		this.schedule();
+	}
+
+	/**
+	 * Determines where discovery goes from the given state.
+	 *
+	 * @param fromDir The direction the cursor entered the state from.
+	 * @return The ID of the direction to step in, {@link #STEP_NODE} if the state is a node, or {@link #STEP_BROKEN}
+	 * if the state does not continue the wire.
+	 */
+	public static int stepDiscovery(BlockState state, Direction fromDir) {
+		if(!NetworkComponents.isComponent(state)) {
 			// this isn't even a valid connection
-			this.breakConnection(sourceDir);
-			return true;
+			return STEP_BROKEN;
 		}
+		// determine whether the current state is a node
+		if(WireBlockBase.shouldHaveBlockEntity(state)) {
+			return STEP_NODE;
+		}
+		// if not a node, step to the next block
+		int connectionMask = WireBlockBase.connectionMask(state) & ~(1 << fromDir.getId());
+		if(Integer.bitCount(connectionMask) != 1) {
+			// something got corrupted, bail and stop
+			return STEP_BROKEN;
+		}
+		return Integer.numberOfTrailingZeros(connectionMask);
 	}
 
-	public void notifyConnectionsBeforeRemove(Collection<Direction> currentConnectionDirs) {
+	/**
+	 * Hands this node's connections over to the nodes at their other ends.
+	 *
+	 * @param currentConnectionMask The directions the block at this position is still connected in, as bits indexed by direction ID.
+	 */
+	public void notifyConnectionsBeforeRemove(int currentConnectionMask) {
 		// initiate discovery from this location at all of the connections
-		for(var entry : this.componentData.connections()) {
-			var dirFromThisNode = entry.getKey();
-			var connection = entry.getValue();
-			var dirFromOtherNode = connection.dir();
-			var otherNodePos = connection.pos();
-			var otherNode = TYPE.get(this.world, otherNodePos);
+		var otherNodePos = new BlockPos.Mutable();
+		for(int dirs = this.componentData.connectionMask(); dirs != 0; dirs &= dirs - 1) {
+			var dirFromThisNode = Direction.byId(Integer.numberOfTrailingZeros(dirs));
+			var dirFromOtherNode = this.componentData.connectionDir(dirFromThisNode);
+			var otherNode = this.getLoadedNode(otherNodePos.set(this.componentData.connectionPos(dirFromThisNode)));
 			if(otherNode != null) {
-				if(currentConnectionDirs.contains(dirFromThisNode)) {
-					// currently connected, should start discovery at this position for that node
-					otherNode.startDiscoveryAt(dirFromOtherNode, this.pos, dirFromThisNode, connection.distance());
+				if((currentConnectionMask & 1 << dirFromThisNode.getId()) != 0) {
+					// currently connected, the segment index already runs through this position
+					if(!otherNode.resolveDiscovery(dirFromOtherNode)) {
+						// otherwise, start discovery at this position for that node
+						otherNode.startDiscoveryAt(dirFromOtherNode, this.pos, dirFromThisNode, this.componentData.connectionDistance(dirFromThisNode));
+					}
 				} else {
 					// not currently connected, should remove this node from its connections
 					otherNode.breakConnection(dirFromOtherNode);
@@ -196,76 +501,72 @@ public class NetworkNodeBlockEntity extends BlockEntity {
 		}
 	}
 
-	@Override
-	public void readNbt(NbtCompound nbt) {
-		super.readNbt(nbt);
-		this.componentData.readNbt(nbt);
-		for(var discoveryElement : nbt.getList(DISCOVERY_STATE, NbtElement.COMPOUND_TYPE)) {
-			this.readDiscoveryData((NbtCompound)discoveryElement);
+	/**
+	 * Gets the node at the given position if its chunk is loaded.
+	 */
+	@Nullable
+	private NetworkNodeBlockEntity getLoadedNode(BlockPos pos) {
+		if(!(this.world instanceof ServerWorld serverWorld)) {
+			return null;
 		}
-		for(var dirId : nbt.getByteArray(QUEUED_DISCOVERY)) {
-			this.queuedDiscovery.add(Direction.byId(dirId));
+		var parking = WorldNetworks.get(serverWorld).parking();
+		if(!DiscoveryParking.isLoaded(this.world, pos)) {
+			parking.recordSkippedAccess();
+			return null;
 		}
+		return parking.getNode(this.world, pos);
 	}
 
-	private void readDiscoveryData(NbtCompound nbt) {
-		var data = new DiscoveryData();
-		var sourceDir = Direction.byId(nbt.getByte(DiscoveryData.SOURCE_DIR));
-		data.pos = new BlockPos(nbt.getInt(DiscoveryData.POS_X), nbt.getInt(DiscoveryData.POS_Y), nbt.getInt(DiscoveryData.POS_Z));
-		data.fromDir = Direction.byId(nbt.getByte(DiscoveryData.FROM_DIR));
-		data.distance = nbt.getInt(DiscoveryData.DISTANCE);
-		this.discoveryState.put(sourceDir, data);
+	@Override
+	public void readNbt(NbtCompound nbt) {
+		super.readNbt(nbt);
+		this.componentData.readNbt(nbt, this.pos);
+		if(NetworkComponentData.formatVersion(nbt) >= 1) {
+			this.cursors.unpack(this.pos.asLong(), nbt.getLongArray(CURSORS));
+			this.queuedMask = nbt.getByte(QUEUED) & 0x3f;
+		} else {
+			this.cursors.clearAll();
+			for(var discoveryElement : nbt.getList(DISCOVERY_STATE, NbtElement.COMPOUND_TYPE)) {
+				var discoveryNbt = (NbtCompound)discoveryElement;
+				int srcDir = discoveryNbt.getByte(SOURCE_DIR);
+				int fromDir = discoveryNbt.getByte(FROM_DIR);
+				if(srcDir >= 0 && srcDir < 6 && fromDir >= 0 && fromDir < 6) {
+					var pos = BlockPos.asLong(discoveryNbt.getInt(POS_X), discoveryNbt.getInt(POS_Y), discoveryNbt.getInt(POS_Z));
+					this.cursors.set(srcDir, pos, fromDir, discoveryNbt.getInt(DISTANCE));
+				}
+			}
+			this.queuedMask = 0;
+			for(var dirId : nbt.getByteArray(QUEUED_DISCOVERY)) {
+				if(dirId >= 0 && dirId < 6) {
+					this.queuedMask |= 1 << dirId;
+				}
+			}
+		}
 	}
 
+	/**
+	 * Sends the full node data along with block changes here. A node placed or changed this tick may not
+	 * exist on the client yet when {@link NodeSync} sends its changes, so those are dropped, and this
+	 * packet, sent after the block change, brings the client up to date.
+	 */
 	@Override
-	protected void writeNbt(NbtCompound nbt) {
-		super.writeNbt(nbt);
-		this.componentData.writeNbt(nbt);
-		var discoveryList = new NbtList();
-		for(var entry : this.discoveryState.entrySet()) {
-			writeDiscoveryData(discoveryList, entry.getKey(), entry.getValue());
-		}
-		nbt.put(DISCOVERY_STATE, discoveryList);
-		var queued = new byte[this.queuedDiscovery.size()];
-		var queuedDiscovery = this.queuedDiscovery.toArray(new Direction[0]);
-		for(int i = 0; i < queuedDiscovery.length; i++) {
-			queued[i] = (byte)queuedDiscovery[i].getId();
-		}
-		nbt.put(QUEUED_DISCOVERY, new NbtByteArray(queued));
+	public Packet<ClientPlayPacketListener> toUpdatePacket() {
+		return BlockEntityUpdateS2CPacket.create(this);
 	}
 
-	private static void writeDiscoveryData(NbtList ls, Direction srcDir, DiscoveryData data) {
+	@Override
+	public NbtCompound toInitialChunkDataNbt() {
+		// clients only need the node data, which NodeSync keeps current afterwards
 		var nbt = new NbtCompound();
-		nbt.putByte(DiscoveryData.SOURCE_DIR, (byte)srcDir.getId());
-		nbt.putInt(DiscoveryData.POS_X, data.pos.getX());
-		nbt.putInt(DiscoveryData.POS_Y, data.pos.getY());
-		nbt.putInt(DiscoveryData.POS_Z, data.pos.getZ());
-		nbt.putByte(DiscoveryData.FROM_DIR, (byte)data.fromDir.getId());
-		nbt.putInt(DiscoveryData.DISTANCE, data.distance);
-		ls.add(nbt);
+		this.componentData.writeNbt(nbt, this.pos);
+		return nbt;
 	}
 
-	private static class DiscoveryData {
-		static final String SOURCE_DIR = "SourceDir";
-		static final String POS_X = "X";
-		static final String POS_Y = "Y";
-		static final String POS_Z = "Z";
-		static final String FROM_DIR = "FromDir";
-		static final String DISTANCE = "Distance";
-
-		/**
-		 * Current position.
-		 */
-		BlockPos pos;
-
-		/**
-		 * Direction of the previous position.
-		 */
-		Direction fromDir;
-
-		/**
-		 * Wire distance from the source.
-		 */
-		int distance;
+	@Override
+	protected void writeNbt(NbtCompound nbt) {
+		super.writeNbt(nbt);
+		this.componentData.writeNbt(nbt, this.pos);
+		nbt.putLongArray(CURSORS, this.cursors.pack(this.pos.asLong()));
+		nbt.putByte(QUEUED, (byte)this.queuedMask);
 	}
 }
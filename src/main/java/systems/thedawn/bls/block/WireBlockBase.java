@@ -11,7 +11,9 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Random;
 
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.network.WorldNetworks;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockRenderType;
@@ -19,8 +21,6 @@ import net.minecraft.block.BlockState;
 import net.minecraft.block.BlockWithEntity;
 import net.minecraft.block.ShapeContext;
 import net.minecraft.block.entity.BlockEntity;
-import net.minecraft.block.entity.BlockEntityTicker;
-import net.minecraft.block.entity.BlockEntityType;
 import net.minecraft.entity.LivingEntity;
 import net.minecraft.item.ItemPlacementContext;
 import net.minecraft.item.ItemStack;
@@ -36,12 +36,11 @@ import net.minecraft.util.shape.VoxelShapes;
 import net.minecraft.world.BlockView;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldAccess;
-import net.minecraft.world.tick.OrderedTick;
 
 /**
  * The base class for all blocks with wire-like connection behavior
  */
-public class WireBlockBase extends BlockWithEntity {
+public class WireBlockBase extends BlockWithEntity implements NetworkComponent {
 	public static final Property<Direction> FACING = Properties.FACING;
 	public static final Property<Boolean> FORWARD = BooleanProperty.of("forward");
 	public static final Property<Boolean> BACKWARD = BooleanProperty.of("backward");
@@ -62,6 +61,30 @@ public class WireBlockBase extends BlockWithEntity {
 		{ Direction.WEST, Direction.EAST, Direction.UP, Direction.DOWN, Direction.SOUTH, Direction.NORTH },
 	};
 
+	/**
+	 * A lookup by facing direction and absolute direction using Direction IDs. Inverse of {@link #RELATIVE_DIR_LOOKUP}.
+	 */
+	private static final Direction[][] ABSOLUTE_DIR_LOOKUP = new Direction[6][6];
+
+	/**
+	 * The absolute directions of each connection property, in the order of {@link #CONNECTIONS}, by facing direction.
+	 */
+	private static final Direction[][] HORIZONTAL_DIR_LOOKUP = new Direction[6][];
+
+	static {
+		for(int facing = 0; facing < 6; facing++) {
+			for(int relative = 0; relative < 6; relative++) {
+				ABSOLUTE_DIR_LOOKUP[facing][RELATIVE_DIR_LOOKUP[facing][relative].getId()] = Direction.byId(relative);
+			}
+			HORIZONTAL_DIR_LOOKUP[facing] = new Direction[] {
+				RELATIVE_DIR_LOOKUP[facing][Direction.NORTH.getId()],
+				RELATIVE_DIR_LOOKUP[facing][Direction.SOUTH.getId()],
+				RELATIVE_DIR_LOOKUP[facing][Direction.WEST.getId()],
+				RELATIVE_DIR_LOOKUP[facing][Direction.EAST.getId()],
+			};
+		}
+	}
+
 	/**
 	 * Lookup for outline shape parts by facing direction and relative horizontal direction.
 	 */
@@ -113,6 +136,31 @@ public class WireBlockBase extends BlockWithEntity {
 		Block.createCuboidShape(0, 7, 7, 2, 9, 9),
 	};
 
+	/**
+	 * Complete outline shapes by facing direction and connection properties, as bits in the order of
+	 * {@link #CONNECTIONS}.
+	 */
+	private static final VoxelShape[][] SHAPES = new VoxelShape[6][16];
+
+	static {
+		for(int facing = 0; facing < 6; facing++) {
+			for(int connections = 0; connections < 16; connections++) {
+				var shape = BASE_OUTLINE_SHAPES[facing];
+				for(int i = 0; i < 4; i++) {
+					if((connections & 1 << i) != 0) {
+						shape = VoxelShapes.union(shape, OUTLINE_SHAPES[facing][i]);
+					}
+				}
+				SHAPES[facing][connections] = shape.simplify();
+			}
+		}
+	}
+
+	/**
+	 * Outline shapes of this block's states, looked up once here rather than on every call.
+	 */
+	private final Reference2ObjectOpenHashMap<BlockState, VoxelShape> outlineShapes;
+
 	public WireBlockBase(Settings settings) {
 		super(settings);
 		this.setDefaultState(this.getDefaultState()
@@ -121,6 +169,16 @@ public class WireBlockBase extends BlockWithEntity {
 			.with(BACKWARD, false)
 			.with(LEFT, false)
 			.with(RIGHT, false));
+		this.outlineShapes = new Reference2ObjectOpenHashMap<>();
+		for(var state : this.getStateManager().getStates()) {
+			int connections = 0;
+			for(int i = 0; i < 4; i++) {
+				if(state.get(CONNECTIONS.get(i))) {
+					connections |= 1 << i;
+				}
+			}
+			this.outlineShapes.put(state, SHAPES[state.get(FACING).getId()][connections]);
+		}
 	}
 
 	@Override
@@ -140,7 +198,6 @@ public class WireBlockBase extends BlockWithEntity {
 		var connectionDirs = relativeHorizontal(facing);
 		for(int i = 0; i < connectionDirs.length; i++) {
 			var adjacentState = world.getBlockState(pos.offset(connectionDirs[i]));
-			// todo replace with interface
 			if(canConnectTo(state, adjacentState)) {
 				state = state.with(CONNECTIONS.get(i), true);
 			}
@@ -159,12 +216,26 @@ public class WireBlockBase extends BlockWithEntity {
 		// initialize block entity state
 		var node = NetworkNodeBlockEntity.TYPE.get(world, pos);
 		if(node != null) {
-			for(var dir : connectionDirs(state)) {
-				node.startDiscovery(dir);
+			for(int dirs = connectionMask(state); dirs != 0; dirs &= dirs - 1) {
+				node.startDiscovery(Direction.byId(Integer.numberOfTrailingZeros(dirs)));
 			}
 		}
 	}
 
+	@Override
+	@SuppressWarnings("deprecation")
+	public void onBlockAdded(BlockState state, World world, BlockPos pos, BlockState oldState, boolean notify) {
+		super.onBlockAdded(state, world, pos, oldState, notify);
+		NetworkComponents.onStateAdded(world, pos, oldState, state);
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void onStateReplaced(BlockState state, World world, BlockPos pos, BlockState newState, boolean moved) {
+		super.onStateReplaced(state, world, pos, newState, moved);
+		NetworkComponents.onStateReplaced(world, pos, newState);
+	}
+
 	@Override
 	@SuppressWarnings("deprecation")
 	public BlockState getStateForNeighborUpdate(BlockState state, Direction direction, BlockState neighborState, WorldAccess world, BlockPos pos, BlockPos neighborPos) {
@@ -172,8 +243,7 @@ public class WireBlockBase extends BlockWithEntity {
 		if(!relativeConnectionDir.getAxis().isHorizontal()) {
 			return state;
 		}
-		var connected = canConnectTo(state, neighborState) &&
-			neighborState.get(toProperty(relativeConnectionDir.getOpposite()));
+		var connected = canConnectTo(state, neighborState) && hasConnectionInAbsolute(neighborState, direction.getOpposite());
 		return state.with(toProperty(relativeConnectionDir), connected);
 	}
 
@@ -181,26 +251,24 @@ public class WireBlockBase extends BlockWithEntity {
 	@SuppressWarnings("deprecation")
 	public void neighborUpdate(BlockState state, World world, BlockPos pos, Block block, BlockPos fromPos, boolean notify) {
 		super.neighborUpdate(state, world, pos, block, fromPos, notify);
-		if(world.isClient()) {
-			return;
-		}
-
-		// speculatively queue discovery in the direction that changed
-		var blockEntity = NetworkNodeBlockEntity.TYPE.get(world, pos);
-		if(blockEntity != null) {
-			var updateDir = Direction.fromVector(fromPos.subtract(pos));
-			if(updateDir != null) {
-				blockEntity.queueDiscovery(updateDir);
-			}
-		}
-
-		// second part of the update requires current state
-		world.getBlockTickScheduler().scheduleTick(OrderedTick.create(BlsBlocks.WIRE, pos));
+		NetworkComponents.onNeighborUpdate(world, pos, fromPos);
 	}
 
 	@Override
 	@SuppressWarnings("deprecation")
 	public void scheduledTick(BlockState state, ServerWorld world, BlockPos pos, Random random) {
+		// only ticks scheduled by earlier versions end up here
+		long start = System.nanoTime();
+		updateNode(world, pos, state, 0);
+		WorldNetworks.get(world).stats().recordNodeUpdate(System.nanoTime() - start);
+	}
+
+	/**
+	 * Brings the node at the given position up to date with its block state.
+	 *
+	 * @param updateMask The directions of neighbor updates since the last call, as bits indexed by direction ID.
+	 */
+	public static void updateNode(ServerWorld world, BlockPos pos, BlockState state, int updateMask) {
 		var blockEntity = NetworkNodeBlockEntity.TYPE.get(world, pos);
 		if(blockEntity == null) {
 			return;
@@ -208,12 +276,18 @@ public class WireBlockBase extends BlockWithEntity {
 
 		if(!shouldHaveBlockEntity(state)) {
 			// remove BE since we're no longer a node
-			blockEntity.notifyConnectionsBeforeRemove(connectionDirs(state));
+			blockEntity.notifyConnectionsBeforeRemove(connectionMask(state));
+			WorldNetworks.get(world).graph().removeNode(pos.asLong());
 			world.removeBlockEntity(pos);
 		} else if(blockEntity.isEmpty()) {
 			// start discovery for all directions
-			for(var dir : connectionDirs(state)) {
-				blockEntity.startDiscovery(dir);
+			for(int dirs = connectionMask(state); dirs != 0; dirs &= dirs - 1) {
+				blockEntity.startDiscovery(Direction.byId(Integer.numberOfTrailingZeros(dirs)));
+			}
+		} else {
+			// speculatively rediscover connections in the directions that changed
+			for(int dirs = updateMask & connectionMask(state); dirs != 0; dirs &= dirs - 1) {
+				blockEntity.queueDiscovery(Direction.byId(Integer.numberOfTrailingZeros(dirs)));
 			}
 		}
 	}
@@ -221,15 +295,7 @@ public class WireBlockBase extends BlockWithEntity {
 	@Override
 	@SuppressWarnings("deprecation")
 	public VoxelShape getOutlineShape(BlockState state, BlockView world, BlockPos pos, ShapeContext context) {
-		var facing = state.get(FACING);
-		var shape = BASE_OUTLINE_SHAPES[facing.getId()];
-		var outlines = OUTLINE_SHAPES[facing.getId()];
-		for(int i = 0; i < 4; i++) {
-			if(state.get(CONNECTIONS.get(i))) {
-				shape = VoxelShapes.union(shape, outlines[i]);
-			}
-		}
-		return shape;
+		return this.outlineShapes.get(state);
 	}
 
 	@Nullable
@@ -241,30 +307,41 @@ public class WireBlockBase extends BlockWithEntity {
 		return null;
 	}
 
-	@Nullable
 	@Override
-	public <T extends BlockEntity> BlockEntityTicker<T> getTicker(World world, BlockState state, BlockEntityType<T> type) {
-		var ticker = checkType(type, NetworkNodeBlockEntity.TYPE, NetworkNodeBlockEntity::tick);
-		return shouldHaveBlockEntity(state) ? ticker : null;
+	public BlockRenderType getRenderType(BlockState state) {
+		return BlockRenderType.MODEL;
+	}
+
+	@Override
+	public Direction getFace(BlockState state) {
+		return state.get(FACING);
 	}
 
 	@Override
-	public BlockRenderType getRenderType(BlockState state) {
-		return BlockRenderType.MODEL;
+	public int getConnectionMask(BlockState state) {
+		var horizontal = relativeHorizontal(state.get(FACING));
+		int mask = 0;
+		for(int i = 0; i < 4; i++) {
+			if(state.get(CONNECTIONS.get(i))) {
+				mask |= 1 << horizontal[i].getId();
+			}
+		}
+		return mask;
 	}
 
 	/**
 	 * Whether the block state should store a block entity.
 	 */
 	public static boolean shouldHaveBlockEntity(BlockState state) {
-		// block states with one, three, or four connections store data
-		int connections = 0;
-		for(var prop : CONNECTIONS) {
-			if(state.get(prop)) {
-				connections++;
-			}
-		}
-		return connections != 0 && connections != 2;
+		// wires between nodes are covered by the segment index instead
+		return NetworkComponents.isNode(state);
+	}
+
+	/**
+	 * Whether the block state is part of a wire segment between nodes, i.e. has exactly two connections.
+	 */
+	public static boolean isSegmentWire(BlockState state) {
+		return NetworkComponents.isSegmentWire(state);
 	}
 
 	/**
@@ -272,15 +349,19 @@ public class WireBlockBase extends BlockWithEntity {
 	 */
 	public static EnumSet<Direction> connectionDirs(BlockState state) {
 		var dirs = EnumSet.noneOf(Direction.class);
-		var facing = state.get(FACING);
-		for(var dir : relativeHorizontal(facing)) {
-			if(hasConnectionInAbsolute(state, dir)) {
-				dirs.add(dir);
-			}
+		for(int mask = connectionMask(state); mask != 0; mask &= mask - 1) {
+			dirs.add(Direction.byId(Integer.numberOfTrailingZeros(mask)));
 		}
 		return dirs;
 	}
 
+	/**
+	 * The (absolute) directions in which the given state is connected, as bits indexed by direction ID.
+	 */
+	public static int connectionMask(BlockState state) {
+		return NetworkComponents.connectionMask(state);
+	}
+
 	/**
 	 * Whether this state can possibly connect to another state.
 	 *
@@ -288,41 +369,22 @@ public class WireBlockBase extends BlockWithEntity {
 	 * @param other The other state.
 	 */
 	public static boolean canConnectTo(BlockState state, BlockState other) {
-		// todo replace with interface
-		return other.getBlock() instanceof WireBlockBase && other.get(FACING) == state.get(FACING);
+		return NetworkComponents.canConnect(state, other);
 	}
 
 	public static boolean hasConnectionInAbsolute(BlockState state, Direction absolute) {
-		var facing = state.get(FACING);
-		if(facing.getAxis() == absolute.getAxis()) {
-			return false;
-		}
-		return state.get(toProperty(toRelative(facing, absolute)));
-	}
-
-	private static Direction toAbsolute(Direction facing, Direction relative) {
-		return RELATIVE_DIR_LOOKUP[facing.getId()][relative.getId()];
-	}
-
-	private static Direction[] toAbsolute(Direction facing, Direction... relative) {
-		for(int i = 0; i < relative.length; i++) {
-			relative[i] = toAbsolute(facing, relative[i]);
-		}
-		return relative;
+		return (NetworkComponents.connectionMask(state) & 1 << absolute.getId()) != 0;
 	}
 
 	private static Direction toRelative(Direction facing, Direction absolute) {
-		var dirs = RELATIVE_DIR_LOOKUP[facing.getId()];
-		for(int i = 0; i < 6; i++) {
-			if(dirs[i] == absolute) {
-				return Direction.byId(i);
-			}
-		}
-		throw new IllegalArgumentException("Impossible direction: " + absolute);
+		return ABSOLUTE_DIR_LOOKUP[facing.getId()][absolute.getId()];
 	}
 
+	/**
+	 * The absolute directions of the connection properties. The returned array is shared and must not be modified.
+	 */
 	private static Direction[] relativeHorizontal(Direction facing) {
-		return toAbsolute(facing, Direction.NORTH, Direction.SOUTH, Direction.WEST, Direction.EAST);
+		return HORIZONTAL_DIR_LOOKUP[facing.getId()];
 	}
 
 	private static Property<Boolean> toProperty(Direction relative) {
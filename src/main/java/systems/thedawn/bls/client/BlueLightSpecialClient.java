@@ -0,0 +1,40 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.client;
+
+import org.quiltmc.loader.api.ModContainer;
+import org.quiltmc.qsl.base.api.entrypoint.client.ClientModInitializer;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+import systems.thedawn.bls.network.NodeSync;
+
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.minecraft.util.math.BlockPos;
+
+public class BlueLightSpecialClient implements ClientModInitializer {
+	@Override
+	public void onInitializeClient(ModContainer mod) {
+		ClientLifecycleEvents.CLIENT_STARTED.register(client -> NetworkComponents.freeze());
+		ClientPlayNetworking.registerGlobalReceiver(NodeSync.CHANNEL, (client, handler, buf, responseSender) -> {
+			var updates = NodeSync.read(buf);
+			client.execute(() -> {
+				if(client.world == null) {
+					return;
+				}
+				var pos = new BlockPos.Mutable();
+				for(var update : updates) {
+					pos.set(update.pos());
+					if(client.world.getBlockEntity(pos) instanceof NetworkNodeBlockEntity node) {
+						update.apply(node.componentData);
+					}
+				}
+			});
+		});
+	}
+}
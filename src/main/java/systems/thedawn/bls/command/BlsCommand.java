@@ -0,0 +1,224 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.command;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.network.NetworkRebuilder;
+import systems.thedawn.bls.network.TopologyExport;
+import systems.thedawn.bls.network.WorldNetworks;
+
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.minecraft.command.argument.BlockPosArgumentType;
+import net.minecraft.command.argument.ColumnPosArgumentType;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.LiteralText;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.ColumnPos;
+
+/**
+ * The {@code /bls} command for inspecting networks on the server.
+ */
+public final class BlsCommand {
+	private static final String EXPORT_DIRECTORY = "bls_exports";
+	private static final DateTimeFormatter EXPORT_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	/**
+	 * The most nodes of a route listed in chat.
+	 */
+	private static final int MAX_ROUTE_LINES = 16;
+
+	/**
+	 * The most chunks along either horizontal axis of a region rebuilt at once.
+	 */
+	private static final int MAX_REBUILD_CHUNKS = 32;
+
+	private BlsCommand() {
+	}
+
+	public static void init() {
+		CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> register(dispatcher));
+	}
+
+	private static void register(CommandDispatcher<ServerCommandSource> dispatcher) {
+		dispatcher.register(CommandManager.literal("bls")
+			.requires(source -> source.hasPermissionLevel(2))
+			.then(CommandManager.literal("stats")
+				.executes(BlsCommand::stats))
+			.then(CommandManager.literal("export")
+				.executes(context -> export(context, null, null))
+				.then(CommandManager.literal("cancel")
+					.executes(BlsCommand::cancelExport))
+				.then(CommandManager.argument("from", ColumnPosArgumentType.columnPos())
+					.then(CommandManager.argument("to", ColumnPosArgumentType.columnPos())
+						.executes(context -> export(context,
+							ColumnPosArgumentType.getColumnPos(context, "from"),
+							ColumnPosArgumentType.getColumnPos(context, "to"))))))
+			.then(CommandManager.literal("route")
+				.then(CommandManager.argument("from", BlockPosArgumentType.blockPos())
+					.then(CommandManager.argument("to", BlockPosArgumentType.blockPos())
+						.executes(context -> route(context,
+							BlockPosArgumentType.getBlockPos(context, "from"),
+							BlockPosArgumentType.getBlockPos(context, "to"))))))
+			.then(CommandManager.literal("rebuild")
+				.then(CommandManager.argument("from", BlockPosArgumentType.blockPos())
+					.then(CommandManager.argument("to", BlockPosArgumentType.blockPos())
+						.executes(context -> rebuild(context,
+							BlockPosArgumentType.getBlockPos(context, "from"),
+							BlockPosArgumentType.getBlockPos(context, "to")))))));
+	}
+
+	/**
+	 * Reports the network counters for the world the command is run in.
+	 */
+	private static int stats(CommandContext<ServerCommandSource> context) {
+		var source = context.getSource();
+		var networks = WorldNetworks.get(source.getWorld());
+		var stats = networks.stats();
+		var scheduler = networks.scheduler();
+		var parking = networks.parking();
+		var updates = networks.neighborUpdates();
+		feedback(source, "Nodes: %d loaded, %d in graph, %d networks, %d evicted",
+			stats.loadedNodes(), networks.graph().nodeCount(), networks.graph().networkCount(), networks.graph().evictedCount());
+		feedback(source, "Discovery: %d active nodes (%d near players), %d cursors, %d parked chunks",
+			scheduler.activeCount(), scheduler.priorityCount(), scheduler.cursorCount(), parking.parkedChunkCount());
+		feedback(source, "Last tick: %d nodes ticked, %d deferred, %d steps, %.3f ms ticking, %.3f ms updating",
+			scheduler.lastTicked(), scheduler.lastDeferred(), stats.lastDiscoverySteps(), millis(stats.lastNodeTickNanos()), millis(stats.lastNodeUpdateNanos()));
+		feedback(source, "Total: %d steps, %d resolved, %d queued, %.1f ms ticking, %.1f ms updating",
+			stats.discoverySteps(), stats.resolvedDiscoveries(), stats.queuedDiscoveries(), millis(stats.nodeTickNanos()), millis(stats.nodeUpdateNanos()));
+		feedback(source, "Connections: %d made, %d broken",
+			stats.connectionsMade(), stats.connectionsBroken());
+		feedback(source, "Segment walks: %d wires claimed, %d duplicate walks merged",
+			networks.segmentWalks().claimCount(), networks.segmentWalks().mergedCount());
+		feedback(source, "Updates: %d received, %d coalesced, %d processed, %d bulk ticks",
+			updates.updateCount(), updates.coalescedCount(), updates.processedCount(), updates.bulkCount());
+		feedback(source, "Parking: %d parked, %d resumed, %d skipped accesses, %d unloaded reads",
+			parking.parkCount(), parking.resumeCount(), parking.skippedAccessCount(), parking.unloadedAccessCount());
+		var validator = networks.validator();
+		feedback(source, "Loaded connections: %d pending, %d trusted, %d confirmed, %d rediscovered",
+			validator.pendingCount(), validator.trustedCount(), validator.confirmedCount(), validator.rediscoveredCount());
+		feedback(source, "Client sync: %d packets, %d node updates",
+			networks.sync().packetCount(), networks.sync().nodeCount());
+		feedback(source, "Events: %d subscriptions, %d batches delivered",
+			networks.events().subscriptionCount(), networks.events().batchCount());
+		var parallel = networks.parallelDiscovery();
+		feedback(source, "Parallel discovery: %d in flight, %d submitted, %d discarded",
+			parallel.inFlightCount(), parallel.submittedCount(), parallel.discardedCount());
+		var router = networks.router();
+		feedback(source, "Routes: %d cached, %d hits, %d searches, %d invalidated",
+			router.cachedCount(), router.hitCount(), router.searchCount(), router.invalidatedCount());
+		var graphFile = networks.store().file();
+		if(graphFile != null) {
+			feedback(source, "Graph store: %d nodes, %d slots", graphFile.size(), graphFile.capacity());
+		}
+		return Command.SINGLE_SUCCESS;
+	}
+
+	/**
+	 * Starts exporting the topology of the world the command is run in, or of the chunks between two
+	 * columns if given, to a file in the world's save directory.
+	 */
+	private static int export(CommandContext<ServerCommandSource> context, @Nullable ColumnPos from, @Nullable ColumnPos to) {
+		var source = context.getSource();
+		var world = source.getWorld();
+		var networks = WorldNetworks.get(world);
+		if(networks.isExporting()) {
+			source.sendError(new LiteralText("An export is already running in this world"));
+			return 0;
+		}
+		var name = String.format("%s-%s.blsx", world.getRegistryKey().getValue().getPath(), LocalDateTime.now().format(EXPORT_TIMESTAMP));
+		var path = source.getServer().getSavePath(WorldSavePath.ROOT).resolve(EXPORT_DIRECTORY).resolve(name);
+		Consumer<String> report = message -> source.sendFeedback(new LiteralText(message), true);
+		TopologyExport export;
+		try {
+			if(from == null || to == null) {
+				export = TopologyExport.ofDimension(world, path, report);
+			} else {
+				var fromChunk = new ChunkPos(ChunkSectionPos.getSectionCoord(from.x), ChunkSectionPos.getSectionCoord(from.z));
+				var toChunk = new ChunkPos(ChunkSectionPos.getSectionCoord(to.x), ChunkSectionPos.getSectionCoord(to.z));
+				export = TopologyExport.ofRegion(world, fromChunk, toChunk, path, report);
+			}
+		} catch(IOException e) {
+			source.sendError(new LiteralText("Could not start export: " + e.getMessage()));
+			return 0;
+		}
+		networks.startExport(export);
+		feedback(source, "Exporting to %s", name);
+		return Command.SINGLE_SUCCESS;
+	}
+
+	/**
+	 * Reports the shortest route between two nodes in the world the command is run in.
+	 */
+	private static int route(CommandContext<ServerCommandSource> context, BlockPos from, BlockPos to) {
+		var source = context.getSource();
+		var route = WorldNetworks.get(source.getWorld()).router().route(from.asLong(), to.asLong());
+		if(route == null) {
+			source.sendError(new LiteralText("No route between " + format(from.asLong()) + " and " + format(to.asLong())));
+			return 0;
+		}
+		feedback(source, "Route: %d nodes, distance %d", route.size(), route.distance());
+		for(int i = 0; i < route.size(); i++) {
+			if(i == MAX_ROUTE_LINES - 1 && route.size() > MAX_ROUTE_LINES) {
+				feedback(source, "  ... %d more", route.size() - i);
+				break;
+			}
+			feedback(source, "  %s", format(route.pos(i)));
+		}
+		return Command.SINGLE_SUCCESS;
+	}
+
+	/**
+	 * Rebuilds the connections of the loaded nodes between two corners in the world the command is run in.
+	 */
+	private static int rebuild(CommandContext<ServerCommandSource> context, BlockPos from, BlockPos to) {
+		var source = context.getSource();
+		var box = BlockBox.create(from, to);
+		int chunksX = ChunkSectionPos.getSectionCoord(box.getMaxX()) - ChunkSectionPos.getSectionCoord(box.getMinX()) + 1;
+		int chunksZ = ChunkSectionPos.getSectionCoord(box.getMaxZ()) - ChunkSectionPos.getSectionCoord(box.getMinZ()) + 1;
+		if(chunksX > MAX_REBUILD_CHUNKS || chunksZ > MAX_REBUILD_CHUNKS) {
+			source.sendError(new LiteralText("Region is larger than " + MAX_REBUILD_CHUNKS + " chunks across"));
+			return 0;
+		}
+		int rebuilt = NetworkRebuilder.rebuild(source.getWorld(), box);
+		source.sendFeedback(new LiteralText(String.format("Rebuilt %d nodes", rebuilt)), true);
+		return rebuilt;
+	}
+
+	private static int cancelExport(CommandContext<ServerCommandSource> context) {
+		if(!WorldNetworks.get(context.getSource().getWorld()).cancelExport()) {
+			context.getSource().sendError(new LiteralText("No export is running in this world"));
+			return 0;
+		}
+		return Command.SINGLE_SUCCESS;
+	}
+
+	private static void feedback(ServerCommandSource source, String format, Object... args) {
+		source.sendFeedback(new LiteralText(String.format(format, args)), false);
+	}
+
+	private static String format(long pos) {
+		return BlockPos.unpackLongX(pos) + ", " + BlockPos.unpackLongY(pos) + ", " + BlockPos.unpackLongZ(pos);
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+}
@@ -7,9 +7,12 @@
  */
 package systems.thedawn.bls.item;
 
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemUsageContext;
+import net.minecraft.text.LiteralText;
 import net.minecraft.util.ActionResult;
 
 /**
@@ -25,7 +28,22 @@ public class BlockEntityViewerItem extends Item {
 		var world = context.getWorld();
 		var pos = context.getBlockPos();
 
-		if(world.getBlockEntity(pos) != null) {
+		var blockEntity = world.getBlockEntity(pos);
+		if(blockEntity instanceof NetworkNodeBlockEntity node) {
+			// node data is synced to clients, so no round trip is needed
+			if(world.isClient() && context.getPlayer() != null) {
+				var data = node.componentData;
+				context.getPlayer().sendMessage(new LiteralText(String.format("Node %s %s %s: %d connections, power %d, signal %d",
+					pos.getX(), pos.getY(), pos.getZ(), data.connectionCount(), data.powerLevel(), data.signalLevel())), false);
+				for(var connection : data.connections()) {
+					var other = connection.getValue();
+					context.getPlayer().sendMessage(new LiteralText(String.format("  %s -> %s %s %s (%s), distance %d",
+						connection.getKey(), other.pos().getX(), other.pos().getY(), other.pos().getZ(), other.dir(), other.distance())), false);
+				}
+			}
+			return ActionResult.PASS;
+		}
+		if(blockEntity != null) {
 			if(world.isClient()) {
 				MinecraftClient
 					.getInstance()
@@ -0,0 +1,148 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Checks the saved connections of loaded nodes against the nodes at their other ends, a few nodes per
+ * tick. A connection is trusted if the other node is still at the epoch recorded for it. Otherwise the
+ * connection is kept if the other node still connects back the same way, and rediscovered if not.
+ * <p>
+ * Connections to nodes in unloaded chunks are left alone; they are checked from the other end when
+ * that node loads.
+ */
+public final class ConnectionValidator {
+	/**
+	 * Most nodes checked per tick.
+	 */
+	private static final int NODES_PER_TICK = 512;
+
+	/**
+	 * The connections to check at each node, as bits indexed by direction ID.
+	 */
+	private final Long2ByteOpenHashMap pending;
+
+	/**
+	 * Nodes to check in the order they were queued, from {@link #head} on.
+	 */
+	private final LongArrayList order;
+	private int head;
+
+	private long trustedCount;
+	private long confirmedCount;
+	private long rediscoveredCount;
+
+	ConnectionValidator() {
+		this.pending = new Long2ByteOpenHashMap();
+		this.order = new LongArrayList();
+	}
+
+	/**
+	 * Queues the connections of a node that just loaded to be checked.
+	 */
+	public void onNodeLoaded(NetworkNodeBlockEntity node) {
+		int mask = node.componentData.connectionMask();
+		if(mask == 0) {
+			return;
+		}
+		long key = node.getPos().asLong();
+		if(!this.pending.containsKey(key)) {
+			this.order.add(key);
+		}
+		this.pending.put(key, (byte)(this.pending.get(key) | mask));
+	}
+
+	public int pendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Number of connections trusted because the other node's epoch matched.
+	 */
+	public long trustedCount() {
+		return this.trustedCount;
+	}
+
+	/**
+	 * Number of connections kept because the other node still connects back.
+	 */
+	public long confirmedCount() {
+		return this.confirmedCount;
+	}
+
+	/**
+	 * Number of connections that were stale and queued for discovery.
+	 */
+	public long rediscoveredCount() {
+		return this.rediscoveredCount;
+	}
+
+	void tick(ServerWorld world) {
+		var parking = WorldNetworks.get(world).parking();
+		var pos = new BlockPos.Mutable();
+		var otherPos = new BlockPos.Mutable();
+		int end = Math.min(this.order.size(), this.head + NODES_PER_TICK);
+		for(; this.head < end; this.head++) {
+			long key = this.order.getLong(this.head);
+			int mask = this.pending.remove(key);
+			pos.set(key);
+			if(!DiscoveryParking.isLoaded(world, pos)) {
+				continue;
+			}
+			var node = parking.getNode(world, pos);
+			if(node == null) {
+				continue;
+			}
+			for(int dirs = mask & node.componentData.connectionMask(); dirs != 0; dirs &= dirs - 1) {
+				this.check(world, parking, node, Direction.byId(Integer.numberOfTrailingZeros(dirs)), otherPos);
+			}
+		}
+		if(this.head == this.order.size()) {
+			this.order.clear();
+			this.head = 0;
+		}
+	}
+
+	private void check(ServerWorld world, DiscoveryParking parking, NetworkNodeBlockEntity node, Direction dir, BlockPos.Mutable otherPos) {
+		var data = node.componentData;
+		otherPos.set(data.connectionPos(dir));
+		if(!DiscoveryParking.isLoaded(world, otherPos)) {
+			return;
+		}
+		var other = parking.getNode(world, otherPos);
+		if(other != null && data.linkEpoch(dir) == other.componentData.epoch()) {
+			this.trustedCount++;
+			return;
+		}
+		var backDir = data.connectionDir(dir);
+		if(other != null && connectsBack(node, dir, other.componentData, backDir)) {
+			data.setLinkEpoch(dir, other.componentData.epoch());
+			other.componentData.setLinkEpoch(backDir, data.epoch());
+			node.markDirty();
+			other.markDirty();
+			this.confirmedCount++;
+			return;
+		}
+		node.queueDiscovery(dir);
+		this.rediscoveredCount++;
+	}
+
+	private static boolean connectsBack(NetworkNodeBlockEntity node, Direction dir, NetworkComponentData other, Direction backDir) {
+		return other.hasConnection(backDir) &&
+			other.connectionPos(backDir) == node.getPos().asLong() &&
+			other.connectionDir(backDir) == dir &&
+			other.connectionDistance(backDir) == node.componentData.connectionDistance(dir);
+	}
+}
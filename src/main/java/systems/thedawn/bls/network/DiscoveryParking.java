@@ -0,0 +1,159 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.BlueLightSpecial;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+
+/**
+ * Holds discovery cursors that reached an unloaded chunk until that chunk loads. Discovery never
+ * reads blocks from unloaded chunks, since doing so would load the chunk synchronously.
+ * <p>
+ * Network code reads blocks and block entities through {@link #getBlockState} and {@link #getNode},
+ * which count any read that reaches an unloaded chunk anyway. The count should stay at zero; anything
+ * else points to a missing {@link #isLoaded} check.
+ */
+public final class DiscoveryParking {
+	/**
+	 * Nodes with cursors parked in each chunk, keyed by chunk position.
+	 */
+	private final Long2ObjectOpenHashMap<ReferenceOpenHashSet<NetworkNodeBlockEntity>> parked;
+
+	/**
+	 * Number of times a cursor was parked.
+	 */
+	private long parkCount;
+
+	/**
+	 * Number of times a cursor was resumed by its chunk loading.
+	 */
+	private long resumeCount;
+
+	/**
+	 * Number of block or block entity accesses skipped because the chunk was not loaded.
+	 */
+	private long skippedAccessCount;
+
+	/**
+	 * Number of reads that reached an unloaded chunk, each of which loaded it synchronously.
+	 */
+	private long unloadedAccessCount;
+
+	DiscoveryParking() {
+		this.parked = new Long2ObjectOpenHashMap<>();
+	}
+
+	/**
+	 * Whether the chunk containing the given position is loaded. Reading from unloaded chunks loads them.
+	 */
+	@SuppressWarnings("deprecation")
+	public static boolean isLoaded(World world, BlockPos pos) {
+		return world.isChunkLoaded(ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getZ()));
+	}
+
+	/**
+	 * Reads a block state, counting the read if it loads a chunk.
+	 */
+	public BlockState getBlockState(World world, BlockPos pos) {
+		this.checkLoaded(world, pos);
+		return world.getBlockState(pos);
+	}
+
+	/**
+	 * Reads the node at the given position, counting the read if it loads a chunk.
+	 */
+	@Nullable
+	public NetworkNodeBlockEntity getNode(World world, BlockPos pos) {
+		this.checkLoaded(world, pos);
+		return NetworkNodeBlockEntity.TYPE.get(world, pos);
+	}
+
+	private void checkLoaded(World world, BlockPos pos) {
+		if(!isLoaded(world, pos) && this.unloadedAccessCount++ == 0) {
+			// the trace shows which read is missing its check
+			BlueLightSpecial.LOGGER.warn("Network read from unloaded chunk at {}", pos.toImmutable(), new IllegalStateException());
+		}
+	}
+
+	/**
+	 * Parks a cursor of the given node until the chunk containing the given position loads.
+	 */
+	public void park(NetworkNodeBlockEntity node, BlockPos pos) {
+		long chunk = ChunkPos.toLong(ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getZ()));
+		var nodes = this.parked.get(chunk);
+		if(nodes == null) {
+			nodes = new ReferenceOpenHashSet<>();
+			this.parked.put(chunk, nodes);
+		}
+		nodes.add(node);
+		this.parkCount++;
+	}
+
+	/**
+	 * Forgets a node's parked cursors, e.g. because the node itself unloaded. Unloaded nodes park again
+	 * when they are next loaded.
+	 */
+	public void unpark(NetworkNodeBlockEntity node, long chunk) {
+		var nodes = this.parked.get(chunk);
+		if(nodes != null && nodes.remove(node) && nodes.isEmpty()) {
+			this.parked.remove(chunk);
+		}
+	}
+
+	/**
+	 * Records an access to an unloaded chunk that was skipped.
+	 */
+	public void recordSkippedAccess() {
+		this.skippedAccessCount++;
+	}
+
+	void onChunkLoaded(ChunkPos chunkPos, NodeScheduler scheduler) {
+		var nodes = this.parked.remove(chunkPos.toLong());
+		if(nodes == null) {
+			return;
+		}
+		for(var node : nodes) {
+			if(!node.isRemoved() && node.resumeDiscovery(chunkPos)) {
+				this.resumeCount++;
+				scheduler.enroll(node);
+			}
+		}
+	}
+
+	/**
+	 * The number of chunks with parked cursors.
+	 */
+	public int parkedChunkCount() {
+		return this.parked.size();
+	}
+
+	public long parkCount() {
+		return this.parkCount;
+	}
+
+	public long resumeCount() {
+		return this.resumeCount;
+	}
+
+	public long skippedAccessCount() {
+		return this.skippedAccessCount;
+	}
+
+	public long unloadedAccessCount() {
+		return this.unloadedAccessCount;
+	}
+}
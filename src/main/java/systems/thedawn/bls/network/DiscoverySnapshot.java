@@ -0,0 +1,90 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.PalettedContainer;
+
+/**
+ * An immutable copy of the block states in a few chunk sections, readable from any thread. Positions
+ * outside the copied sections count as not loaded.
+ */
+final class DiscoverySnapshot implements WireView {
+	private final long[] sectionKeys;
+
+	/**
+	 * Copied block states of each section, or null for sections without blocks.
+	 */
+	private final PalettedContainer<BlockState>[] sections;
+
+	/**
+	 * Versions of each section when it was copied.
+	 */
+	private final int[] versions;
+
+	private int size;
+
+	@SuppressWarnings("unchecked")
+	DiscoverySnapshot(int capacity) {
+		this.sectionKeys = new long[capacity];
+		this.sections = new PalettedContainer[capacity];
+		this.versions = new int[capacity];
+	}
+
+	void add(long sectionKey, @Nullable PalettedContainer<BlockState> section, int version) {
+		this.sectionKeys[this.size] = sectionKey;
+		this.sections[this.size] = section;
+		this.versions[this.size] = version;
+		this.size++;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	long sectionKey(int i) {
+		return this.sectionKeys[i];
+	}
+
+	int version(int i) {
+		return this.versions[i];
+	}
+
+	private int indexOf(BlockPos pos) {
+		long key = ChunkSectionPos.asLong(
+			ChunkSectionPos.getSectionCoord(pos.getX()),
+			ChunkSectionPos.getSectionCoord(pos.getY()),
+			ChunkSectionPos.getSectionCoord(pos.getZ()));
+		for(int i = 0; i < this.size; i++) {
+			if(this.sectionKeys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public BlockState getBlockState(BlockPos pos) {
+		int i = this.indexOf(pos);
+		var section = i < 0 ? null : this.sections[i];
+		if(section == null) {
+			return Blocks.AIR.getDefaultState();
+		}
+		return section.get(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
+	}
+
+	@Override
+	public boolean isLoaded(BlockPos pos) {
+		return this.indexOf(pos) >= 0;
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * A memory-mapped table of node records, keyed by packed block position. Lookups probe the mapped file
+ * directly, so reading a node allocates nothing on the heap and needs no chunks loaded. Depends only on
+ * the JDK, so offline tools can open the file with {@link #open(Path, boolean)}.
+ * <p>
+ * The file is a header followed by an open-addressed hash table of fixed-size slots with linear
+ * probing. A slot holds a node's position, state, connection mask, power and signal levels and epoch,
+ * then one fixed-size edge record per direction: the other node's position, the distance, and the
+ * direction and face packed as in {@link NetworkComponentData}. Each time the table is rebuilt, to grow or
+ * to drop deleted slots, it moves to a file of the next generation.
+ */
+public final class GraphFile implements Closeable {
+	public static final int MAGIC = 0x424c5347;
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * The largest capacity, which keeps the file within a single mapping.
+	 */
+	public static final int MAX_CAPACITY = 1 << 24;
+
+	/**
+	 * The face of an edge whose other node's face is not known.
+	 */
+	public static final int UNKNOWN_FACE = 7;
+
+	private static final int MIN_CAPACITY = 1 << 12;
+	private static final Pattern FILE_NAME = Pattern.compile("bls_graph-(\\d+)\\.dat");
+
+	// header layout
+	private static final int HEADER_SIZE = 32;
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_CAPACITY = 8;
+	private static final int H_USED = 12;
+	private static final int H_DELETED = 16;
+	private static final int H_CLEAN = 20;
+
+	// slot layout
+	private static final int SLOT_SIZE = 112;
+	private static final int S_POS = 0;
+	private static final int S_STATE = 8;
+	private static final int S_MASK = 9;
+	private static final int S_POWER = 10;
+	private static final int S_SIGNAL = 11;
+	private static final int S_EPOCH = 12;
+	private static final int S_EDGES = 16;
+	private static final int EDGE_SIZE = 16;
+	private static final int E_POS = 0;
+	private static final int E_DISTANCE = 8;
+	private static final int E_DIRS = 12;
+
+	private static final byte EMPTY = 0;
+	private static final byte USED = 1;
+	private static final byte DELETED = 2;
+
+	private final Path directory;
+	private final boolean writable;
+	private Path path;
+	private long generation;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int used;
+	private int deleted;
+
+	private GraphFile(Path directory, boolean writable) {
+		this.directory = directory;
+		this.writable = writable;
+	}
+
+	/**
+	 * Opens the table in the given directory. A writable table is created if there is none, and started
+	 * over if it was not closed cleanly, since it may be partly written.
+	 *
+	 * @throws IOException If the table can't be opened, or there is no table to read.
+	 */
+	public static GraphFile open(Path directory, boolean writable) throws IOException {
+		var file = new GraphFile(directory, writable);
+		long latest = latestGeneration(directory);
+		if(latest >= 0 && file.map(latest, -1) && (!writable || file.buffer.get(H_CLEAN) != 0)) {
+			if(writable) {
+				file.buffer.put(H_CLEAN, (byte)0);
+				file.deleteOthers();
+			}
+			return file;
+		}
+		// an unclean table must not be marked clean by closing it
+		file.release();
+		if(!writable) {
+			throw new IOException("No graph table in " + directory);
+		}
+		Files.createDirectories(directory);
+		file.map(latest + 1, MIN_CAPACITY);
+		file.deleteOthers();
+		return file;
+	}
+
+	/**
+	 * Deletes the table in the given directory, e.g. because it went out of date.
+	 */
+	public static void delete(Path directory) throws IOException {
+		if(Files.isDirectory(directory)) {
+			try(var files = Files.list(directory)) {
+				for(var file : (Iterable<Path>)files::iterator) {
+					if(FILE_NAME.matcher(file.getFileName().toString()).matches()) {
+						Files.deleteIfExists(file);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The generation of the newest table file, or -1 if there is none.
+	 */
+	private static long latestGeneration(Path directory) throws IOException {
+		long latest = -1;
+		if(Files.isDirectory(directory)) {
+			try(var files = Files.list(directory)) {
+				for(var file : (Iterable<Path>)files::iterator) {
+					var matcher = FILE_NAME.matcher(file.getFileName().toString());
+					if(matcher.matches()) {
+						try {
+							latest = Math.max(latest, Long.parseLong(matcher.group(1)));
+						} catch(NumberFormatException e) {
+							// not one of ours
+						}
+					}
+				}
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Maps a table file.
+	 *
+	 * @param generation The generation of the file.
+	 * @param capacity   The capacity to create the file with, or -1 to map an existing file.
+	 * @return Whether the file held a valid table.
+	 */
+	private boolean map(long generation, int capacity) throws IOException {
+		this.generation = generation;
+		this.path = this.directory.resolve("bls_graph-" + generation + ".dat");
+		this.channel = this.writable
+			? FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+			: FileChannel.open(this.path, StandardOpenOption.READ);
+		if(capacity < 0) {
+			if(this.channel.size() < HEADER_SIZE) {
+				return false;
+			}
+			this.buffer = this.channel.map(this.writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+			this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+			this.capacity = this.buffer.getInt(H_CAPACITY);
+			if(this.buffer.getInt(H_MAGIC) != MAGIC || this.buffer.getInt(H_VERSION) != FORMAT_VERSION ||
+				Integer.bitCount(this.capacity) != 1 || this.channel.size() < size(this.capacity)) {
+				return false;
+			}
+			this.used = this.buffer.getInt(H_USED);
+			this.deleted = this.buffer.getInt(H_DELETED);
+			return true;
+		}
+		// a fresh file reads as all zeroes, which are empty slots
+		this.channel.truncate(0);
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size(capacity));
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.capacity = capacity;
+		this.used = 0;
+		this.deleted = 0;
+		this.buffer.putInt(H_MAGIC, MAGIC);
+		this.buffer.putInt(H_VERSION, FORMAT_VERSION);
+		this.buffer.putInt(H_CAPACITY, capacity);
+		this.writeCounts();
+		return true;
+	}
+
+	private static long size(int capacity) {
+		return HEADER_SIZE + (long)capacity * SLOT_SIZE;
+	}
+
+	/**
+	 * Deletes the files of other generations. Files still mapped elsewhere may fail to delete on some platforms,
+	 * and are deleted next time instead.
+	 */
+	private void deleteOthers() {
+		if(!this.writable) {
+			return;
+		}
+		try(var files = Files.list(this.directory)) {
+			for(var file : (Iterable<Path>)files::iterator) {
+				if(!file.equals(this.path) && FILE_NAME.matcher(file.getFileName().toString()).matches()) {
+					try {
+						Files.deleteIfExists(file);
+					} catch(IOException e) {
+						// deleted next time
+					}
+				}
+			}
+		} catch(IOException e) {
+			// deleted next time
+		}
+	}
+
+	private void writeCounts() {
+		this.buffer.putInt(H_USED, this.used);
+		this.buffer.putInt(H_DELETED, this.deleted);
+	}
+
+	/**
+	 * The number of nodes in the table.
+	 */
+	public int size() {
+		return this.used;
+	}
+
+	public int capacity() {
+		return this.capacity;
+	}
+
+	private static int hash(long pos) {
+		long h = pos * 0x9e3779b97f4a7c15L;
+		return (int)(h ^ h >>> 32);
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Finds the slot of the node at the given position.
+	 *
+	 * @return The slot, or -1 if there is no such node.
+	 */
+	public int find(long pos) {
+		int mask = this.capacity - 1;
+		for(int slot = hash(pos) & mask; ; slot = slot + 1 & mask) {
+			int offset = offset(slot);
+			byte state = this.buffer.get(offset + S_STATE);
+			if(state == EMPTY) {
+				return -1;
+			}
+			if(state == USED && this.buffer.getLong(offset + S_POS) == pos) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Finds or adds the slot of the node at the given position. New slots have no connections.
+	 *
+	 * @return The slot, or -1 if the table is full at its largest capacity.
+	 */
+	public int insert(long pos) throws IOException {
+		int found = this.find(pos);
+		if(found >= 0) {
+			return found;
+		}
+		if((this.used + this.deleted + 1) * 2L > this.capacity) {
+			// tables mostly made of deleted slots are rebuilt at the same size
+			int capacity = (this.used + 1) * 4L > this.capacity ? this.capacity * 2 : this.capacity;
+			if(capacity > MAX_CAPACITY) {
+				return -1;
+			}
+			this.rehash(capacity);
+		}
+		int mask = this.capacity - 1;
+		int slot = hash(pos) & mask;
+		while(this.buffer.get(offset(slot) + S_STATE) == USED) {
+			slot = slot + 1 & mask;
+		}
+		int offset = offset(slot);
+		if(this.buffer.get(offset + S_STATE) == DELETED) {
+			this.deleted--;
+		}
+		this.buffer.putLong(offset + S_POS, pos);
+		this.buffer.put(offset + S_STATE, USED);
+		this.buffer.put(offset + S_MASK, (byte)0);
+		this.used++;
+		this.writeCounts();
+		return slot;
+	}
+
+	/**
+	 * Removes the node at the given position, if any.
+	 */
+	public void remove(long pos) {
+		int slot = this.find(pos);
+		if(slot >= 0) {
+			this.buffer.put(offset(slot) + S_STATE, DELETED);
+			this.used--;
+			this.deleted++;
+			this.writeCounts();
+		}
+	}
+
+	/**
+	 * Whether adding the given number of nodes would make {@link #insert} rebuild the table.
+	 */
+	public boolean needsRehash(int added) {
+		return (this.used + this.deleted + (long)added) * 2 > this.capacity;
+	}
+
+	/**
+	 * Copies every node into a table of the next generation, with room for the given number of nodes
+	 * more. Only reads this table, so it can run on another thread as long as nothing writes this table
+	 * until the copy is done. The copy replaces this table with {@link #closeReplacedBy}.
+	 *
+	 * @throws IOException If the copy can't be written, or would be larger than {@link #MAX_CAPACITY}.
+	 */
+	public GraphFile rehashed(int added) throws IOException {
+		int capacity = MIN_CAPACITY;
+		while((this.used + (long)added) * 4 > capacity) {
+			capacity *= 2;
+			if(capacity > MAX_CAPACITY) {
+				throw new IOException("Graph table is full at " + MAX_CAPACITY + " slots");
+			}
+		}
+		var copy = new GraphFile(this.directory, true);
+		copy.map(this.generation + 1, capacity);
+		copy.buffer.put(H_CLEAN, (byte)0);
+		copy.copySlots(this.buffer, this.capacity);
+		return copy;
+	}
+
+	/**
+	 * Closes this table after {@link #rehashed} copied it, and deletes its file.
+	 */
+	public void closeReplacedBy(GraphFile copy) throws IOException {
+		this.release();
+		copy.deleteOthers();
+	}
+
+	/**
+	 * Moves every node into a new file with the given capacity.
+	 */
+	private void rehash(int capacity) throws IOException {
+		var old = this.buffer;
+		int oldCapacity = this.capacity;
+		var oldChannel = this.channel;
+		this.map(this.generation + 1, capacity);
+		this.buffer.put(H_CLEAN, (byte)0);
+		this.copySlots(old, oldCapacity);
+		oldChannel.close();
+		this.deleteOthers();
+	}
+
+	/**
+	 * Adds the nodes of another table to this one, which must be empty and large enough.
+	 */
+	private void copySlots(MappedByteBuffer from, int fromCapacity) {
+		int mask = this.capacity - 1;
+		for(int i = 0; i < fromCapacity; i++) {
+			int offset = offset(i);
+			if(from.get(offset + S_STATE) == USED) {
+				int slot = hash(from.getLong(offset + S_POS)) & mask;
+				while(this.buffer.get(offset(slot) + S_STATE) != EMPTY) {
+					slot = slot + 1 & mask;
+				}
+				this.buffer.put(offset(slot), from, offset, SLOT_SIZE);
+				this.used++;
+			}
+		}
+		this.writeCounts();
+	}
+
+	public int connectionMask(int slot) {
+		return this.buffer.get(offset(slot) + S_MASK) & 0x3f;
+	}
+
+	public int powerLevel(int slot) {
+		return this.buffer.get(offset(slot) + S_POWER);
+	}
+
+	public int signalLevel(int slot) {
+		return this.buffer.get(offset(slot) + S_SIGNAL);
+	}
+
+	/**
+	 * The connection epoch of a node, see {@link NetworkComponentData#epoch()}.
+	 */
+	public int epoch(int slot) {
+		return this.buffer.getInt(offset(slot) + S_EPOCH);
+	}
+
+	/**
+	 * The packed position of the node connected in the given direction.
+	 */
+	public long connectionPos(int slot, int dir) {
+		return this.buffer.getLong(offset(slot) + S_EDGES + dir * EDGE_SIZE + E_POS);
+	}
+
+	public int connectionDistance(int slot, int dir) {
+		return this.buffer.getInt(offset(slot) + S_EDGES + dir * EDGE_SIZE + E_DISTANCE);
+	}
+
+	/**
+	 * The ID of the direction from which the node in the given direction connects back.
+	 */
+	public int connectionDir(int slot, int dir) {
+		return this.buffer.get(offset(slot) + S_EDGES + dir * EDGE_SIZE + E_DIRS) & 7;
+	}
+
+	/**
+	 * The ID of the face the node in the given direction is on, or {@link #UNKNOWN_FACE}.
+	 */
+	public int connectionFace(int slot, int dir) {
+		return this.buffer.get(offset(slot) + S_EDGES + dir * EDGE_SIZE + E_DIRS) >> 3 & 7;
+	}
+
+	/**
+	 * Writes the levels and epoch of a node.
+	 */
+	public void setNode(int slot, int powerLevel, int signalLevel, int epoch) {
+		int offset = offset(slot);
+		this.buffer.put(offset + S_POWER, (byte)powerLevel);
+		this.buffer.put(offset + S_SIGNAL, (byte)signalLevel);
+		this.buffer.putInt(offset + S_EPOCH, epoch);
+	}
+
+	/**
+	 * Writes the connections of a node. Edges outside the mask are left as they were and ignored.
+	 */
+	public void setConnectionMask(int slot, int mask) {
+		this.buffer.put(offset(slot) + S_MASK, (byte)mask);
+	}
+
+	/**
+	 * Writes the edge in one direction of a node.
+	 *
+	 * @param dirs The direction and face of the other node, packed as {@code dir | face << 3}.
+	 */
+	public void setConnection(int slot, int dir, long pos, int dirs, int distance) {
+		int offset = offset(slot) + S_EDGES + dir * EDGE_SIZE;
+		this.buffer.putLong(offset + E_POS, pos);
+		this.buffer.putInt(offset + E_DISTANCE, distance);
+		this.buffer.put(offset + E_DIRS, (byte)dirs);
+	}
+
+	/**
+	 * Writes changes through to the file.
+	 */
+	public void force() {
+		if(this.writable) {
+			this.buffer.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(this.channel == null) {
+			return;
+		}
+		if(this.writable && this.buffer != null) {
+			this.writeCounts();
+			this.buffer.put(H_CLEAN, (byte)1);
+			this.buffer.force();
+		}
+		this.release();
+	}
+
+	private void release() throws IOException {
+		if(this.channel != null) {
+			this.channel.close();
+		}
+		this.channel = null;
+		this.buffer = null;
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.BlsGameRules;
+import systems.thedawn.bls.BlueLightSpecial;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Util;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.dimension.DimensionType;
+
+/**
+ * Mirrors the network graph of a world into a {@link GraphFile} in the world's save directory. Nodes are
+ * written from the graph once per tick when their connections change, or when their block entity marks
+ * them changed, and deleted with their graph node. Evicted nodes stay in the file, and
+ * {@link #loadNetwork} brings their networks back into the graph when they are needed again, without
+ * loading their chunks. Levels of unloaded nodes are as of their last write.
+ * <p>
+ * Growing the file and writing it through to disk happen on the IO worker threads. Writes wait until
+ * the file has grown.
+ * <p>
+ * Enabled by the {@link BlsGameRules#GRAPH_STORE} rule. Disabling the rule deletes the file, since it
+ * would go out of date. If the file can't be written, the store stays closed until the rule is turned
+ * off and on again.
+ */
+public final class GraphStore implements NetworkGraph.Listener {
+	/**
+	 * Ticks between writing the mapped file through to disk.
+	 */
+	private static final int FORCE_INTERVAL = 6000;
+
+	private final NetworkGraph graph;
+
+	/**
+	 * Nodes to write or delete at the end of the tick, by position.
+	 */
+	private final LongOpenHashSet dirty;
+
+	/**
+	 * The latest epochs of changed nodes, by position. Nodes without one keep the epoch in the file.
+	 */
+	private final Long2IntOpenHashMap epochs;
+
+	/**
+	 * Changed nodes evicted from the graph before they were written, by position.
+	 */
+	private final Long2ObjectOpenHashMap<NetworkGraph.Node> evicted;
+
+	@Nullable
+	private GraphFile file;
+
+	/**
+	 * The grown copy of the file being made, if any.
+	 */
+	@Nullable
+	private CompletableFuture<GraphFile> growing;
+
+	@Nullable
+	private CompletableFuture<Void> forcing;
+
+	private int ticksSinceForce;
+
+	/**
+	 * Whether the store failed while enabled, which keeps it closed until the rule is turned off again.
+	 */
+	private boolean failed;
+
+	/**
+	 * Whether nodes are being loaded from the file, which doesn't change them.
+	 */
+	private boolean loading;
+
+	GraphStore(NetworkGraph graph) {
+		this.graph = graph;
+		this.dirty = new LongOpenHashSet();
+		this.epochs = new Long2IntOpenHashMap();
+		this.evicted = new Long2ObjectOpenHashMap<>();
+	}
+
+	/**
+	 * The directory of the graph file for a world.
+	 */
+	public static Path directory(ServerWorld world) {
+		var root = world.getServer().getSavePath(WorldSavePath.ROOT);
+		return DimensionType.getSaveDirectory(world.getRegistryKey(), root).resolve("data");
+	}
+
+	/**
+	 * The graph file, or null if the store is disabled. Valid until the end of the tick.
+	 */
+	@Nullable
+	public GraphFile file() {
+		return this.file;
+	}
+
+	/**
+	 * Marks a node to be written at the end of the tick.
+	 *
+	 * @param epoch The node's current epoch, see {@link NetworkComponentData#epoch()}.
+	 */
+	public void markChanged(BlockPos pos, int epoch) {
+		if(this.file != null) {
+			this.dirty.add(pos.asLong());
+			this.epochs.put(pos.asLong(), epoch);
+		}
+	}
+
+	/**
+	 * Loads the network of the node at the given position from the file into the graph, if the graph
+	 * doesn't know the node, e.g. because its network was evicted. Nodes the graph knows are left as
+	 * they are. Loaded nodes have their connections, but no levels until they are recomputed, and are
+	 * evicted again like any other unloaded network.
+	 *
+	 * @return Whether the node was loaded.
+	 */
+	public boolean loadNetwork(long pos) {
+		var file = this.file;
+		if(file == null || this.growing != null || this.graph.node(pos) != null || file.find(pos) < 0) {
+			return false;
+		}
+		try {
+			// evicted nodes may not have been written yet
+			this.flush();
+		} catch(IOException e) {
+			this.fail(e);
+			return false;
+		}
+		var seen = new LongOpenHashSet();
+		var queue = new LongArrayFIFOQueue();
+		seen.add(pos);
+		queue.enqueue(pos);
+		this.loading = true;
+		try {
+			while(!queue.isEmpty()) {
+				long current = queue.dequeueLong();
+				int slot = file.find(current);
+				if(slot < 0) {
+					continue;
+				}
+				this.graph.nodeAt(current);
+				for(int dirs = file.connectionMask(slot); dirs != 0; dirs &= dirs - 1) {
+					int dir = Integer.numberOfTrailingZeros(dirs);
+					long other = file.connectionPos(slot, dir);
+					if(!seen.contains(other) && this.graph.node(other) != null) {
+						continue;
+					}
+					this.graph.connect(current, Direction.byId(dir), other, Direction.byId(file.connectionDir(slot, dir)), file.connectionDistance(slot, dir));
+					if(seen.add(other)) {
+						queue.enqueue(other);
+					}
+				}
+			}
+		} finally {
+			this.loading = false;
+		}
+		this.graph.checkUnloaded(pos);
+		return true;
+	}
+
+	@Override
+	public void onConnected(NetworkGraph.Node a, NetworkGraph.Node b, int distance) {
+		if(this.file != null && !this.loading) {
+			this.dirty.add(a.pos);
+			this.dirty.add(b.pos);
+		}
+	}
+
+	@Override
+	public void onDisconnected(NetworkGraph.Node a, NetworkGraph.Node b) {
+		if(this.file != null) {
+			this.dirty.add(a.pos);
+			this.dirty.add(b.pos);
+		}
+	}
+
+	@Override
+	public void onNodeRemoved(NetworkGraph.Node node) {
+		if(this.file != null) {
+			this.dirty.add(node.pos);
+			this.evicted.remove(node.pos);
+		}
+	}
+
+	@Override
+	public void onNodeEvicted(NetworkGraph.Node node) {
+		if(this.file != null && this.dirty.contains(node.pos)) {
+			this.evicted.put(node.pos, node);
+		}
+	}
+
+	void tick(ServerWorld world) {
+		boolean enabled = world.getGameRules().getBoolean(BlsGameRules.GRAPH_STORE);
+		if(!enabled) {
+			this.failed = false;
+		}
+		if(enabled && !this.failed && this.file == null) {
+			this.open(world);
+		} else if(!enabled && this.file != null) {
+			this.close();
+			try {
+				GraphFile.delete(directory(world));
+			} catch(IOException e) {
+				BlueLightSpecial.LOGGER.warn("Could not delete graph store", e);
+			}
+		}
+		if(this.file == null) {
+			return;
+		}
+		try {
+			if(this.growing != null) {
+				if(!this.growing.isDone()) {
+					return;
+				}
+				this.finishGrowing();
+			}
+			this.flush();
+		} catch(IOException e) {
+			this.fail(e);
+			return;
+		}
+		if(++this.ticksSinceForce >= FORCE_INTERVAL && this.growing == null && (this.forcing == null || this.forcing.isDone())) {
+			this.ticksSinceForce = 0;
+			this.forcing = CompletableFuture.runAsync(this.file::force, Util.getIoWorkerExecutor());
+		}
+	}
+
+	private void open(ServerWorld world) {
+		try {
+			this.file = GraphFile.open(directory(world), true);
+		} catch(IOException e) {
+			BlueLightSpecial.LOGGER.error("Could not open graph store", e);
+			this.failed = true;
+			return;
+		}
+		// nodes already seen may have changed since the store was last open
+		this.dirty.addAll(this.graph.positions());
+	}
+
+	/**
+	 * Writes the changed nodes, or starts growing the file if they might not fit.
+	 */
+	private void flush() throws IOException {
+		if(this.dirty.isEmpty() || this.growing != null) {
+			return;
+		}
+		var file = this.file;
+		if(file.needsRehash(this.dirty.size())) {
+			int added = this.dirty.size();
+			this.growing = CompletableFuture.supplyAsync(() -> {
+				try {
+					return file.rehashed(added);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, Util.getIoWorkerExecutor());
+			return;
+		}
+		for(var itr = this.dirty.iterator(); itr.hasNext(); ) {
+			long pos = itr.nextLong();
+			var node = this.graph.node(pos);
+			if(node == null) {
+				node = this.evicted.get(pos);
+			}
+			if(node == null) {
+				file.remove(pos);
+				this.epochs.remove(pos);
+			} else {
+				this.write(node);
+			}
+		}
+		this.dirty.clear();
+		this.evicted.clear();
+	}
+
+	private void write(NetworkGraph.Node node) throws IOException {
+		var file = this.file;
+		// the file was grown to fit before writing, so this never rebuilds it
+		int slot = file.insert(node.pos);
+		if(slot < 0) {
+			throw new IOException("Graph table is full");
+		}
+		int epoch = this.epochs.containsKey(node.pos) ? this.epochs.remove(node.pos) : file.epoch(slot);
+		file.setNode(slot, node.network.powerLevel, node.signal, epoch);
+		int mask = 0;
+		for(int dir = 0; dir < 6; dir++) {
+			var neighbor = node.neighbors[dir];
+			if(neighbor != null) {
+				// connected nodes share a face
+				int face = neighbor.face >= 0 ? neighbor.face : node.face >= 0 ? node.face : GraphFile.UNKNOWN_FACE;
+				file.setConnection(slot, dir, neighbor.pos, node.neighborDirs[dir] | face << 3, node.distances[dir]);
+				mask |= 1 << dir;
+			}
+		}
+		file.setConnectionMask(slot, mask);
+	}
+
+	/**
+	 * Replaces the file with its grown copy.
+	 */
+	private void finishGrowing() throws IOException {
+		var growing = this.growing;
+		this.growing = null;
+		GraphFile grown;
+		try {
+			grown = growing.join();
+		} catch(CompletionException e) {
+			throw e.getCause() instanceof UncheckedIOException io ? io.getCause() : new IOException(e.getCause());
+		}
+		this.awaitForce();
+		this.file.closeReplacedBy(grown);
+		this.file = grown;
+	}
+
+	private void awaitForce() {
+		if(this.forcing != null) {
+			this.forcing.join();
+			this.forcing = null;
+		}
+	}
+
+	private void fail(IOException e) {
+		BlueLightSpecial.LOGGER.error("Graph store failed, closing it", e);
+		this.failed = true;
+		this.close();
+	}
+
+	void close() {
+		if(this.file == null) {
+			return;
+		}
+		try {
+			if(this.growing != null) {
+				this.growing.handle((grown, e) -> null).join();
+				this.finishGrowing();
+			}
+			this.flush();
+		} catch(IOException | RuntimeException e) {
+			BlueLightSpecial.LOGGER.warn("Could not write graph store before closing it", e);
+		}
+		try {
+			this.awaitForce();
+			this.file.close();
+		} catch(IOException | RuntimeException e) {
+			BlueLightSpecial.LOGGER.warn("Could not close graph store", e);
+		}
+		this.file = null;
+		this.growing = null;
+		this.dirty.clear();
+		this.epochs.clear();
+		this.evicted.clear();
+	}
+}
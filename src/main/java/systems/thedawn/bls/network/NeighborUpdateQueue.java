@@ -0,0 +1,167 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Collects updates to wire positions during a tick and processes each position once at the end of it.
+ * Contraptions next to wires can update the same position many times per tick.
+ */
+public final class NeighborUpdateQueue {
+	/**
+	 * Number of positions in one tick above which the edit is treated as a bulk edit, and every node is
+	 * rebuilt immediately by {@link NetworkRebuilder} instead of being given discovery work.
+	 */
+	public static final int BULK_THRESHOLD = 1024;
+
+	/**
+	 * Update bit for a node whose inputs should be read again, without any change to its wires.
+	 */
+	private static final int INPUTS = 1 << 6;
+
+	private static final int DIRECTIONS = 0x3f;
+
+	/**
+	 * The directions updates came from at each dirty position, as bits indexed by direction ID.
+	 */
+	private final Long2ByteOpenHashMap dirty;
+
+	/**
+	 * Dirty positions in the order they were first updated.
+	 */
+	private final LongArrayList order;
+
+	/**
+	 * Number of updates received.
+	 */
+	private long updateCount;
+
+	/**
+	 * Number of updates merged into an update already queued for the same position.
+	 */
+	private long coalescedCount;
+
+	/**
+	 * Number of positions processed.
+	 */
+	private long processedCount;
+
+	/**
+	 * Number of ticks processed as bulk edits.
+	 */
+	private long bulkCount;
+
+	private final NetworkStats stats;
+
+	NeighborUpdateQueue(NetworkStats stats) {
+		this.stats = stats;
+		this.dirty = new Long2ByteOpenHashMap();
+		this.order = new LongArrayList();
+	}
+
+	/**
+	 * Marks a wire position as updated.
+	 *
+	 * @param from The direction of the update, or null if the wire itself changed.
+	 */
+	public void markDirty(BlockPos pos, @Nullable Direction from) {
+		long key = pos.asLong();
+		int bit = from == null ? 0 : 1 << from.getId();
+		this.updateCount++;
+		if(this.dirty.containsKey(key)) {
+			this.coalescedCount++;
+			this.dirty.put(key, (byte)(this.dirty.get(key) | bit));
+		} else {
+			this.dirty.put(key, (byte)bit);
+			this.order.add(key);
+		}
+	}
+
+	/**
+	 * Marks a node to have its inputs read at the end of the tick, e.g. because it just loaded.
+	 */
+	public void markInputs(BlockPos pos) {
+		long key = pos.asLong();
+		if(this.dirty.containsKey(key)) {
+			this.dirty.put(key, (byte)(this.dirty.get(key) | INPUTS));
+		} else {
+			this.dirty.put(key, (byte)INPUTS);
+			this.order.add(key);
+		}
+	}
+
+	public long updateCount() {
+		return this.updateCount;
+	}
+
+	public long coalescedCount() {
+		return this.coalescedCount;
+	}
+
+	public long processedCount() {
+		return this.processedCount;
+	}
+
+	public long bulkCount() {
+		return this.bulkCount;
+	}
+
+	/**
+	 * Processes every position updated this tick.
+	 */
+	void tick(ServerWorld world) {
+		if(this.order.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		var parking = WorldNetworks.get(world).parking();
+		var pos = new BlockPos.Mutable();
+		// updates made while processing go into the next batch
+		var keys = this.order.toLongArray();
+		this.order.clear();
+		boolean bulk = keys.length >= BULK_THRESHOLD;
+		if(bulk) {
+			this.bulkCount++;
+		}
+		for(long key : keys) {
+			int updateMask = this.dirty.remove(key);
+			pos.set(key);
+			if(!DiscoveryParking.isLoaded(world, pos)) {
+				continue;
+			}
+			// input-only updates leave the wires here as they are, so they need no block state
+			if(updateMask != INPUTS) {
+				var state = parking.getBlockState(world, pos);
+				if(!NetworkComponents.isComponent(state)) {
+					this.processedCount++;
+					continue;
+				}
+				if(bulk) {
+					NetworkRebuilder.rebuildNode(world, pos.toImmutable(), state);
+				} else {
+					WireBlockBase.updateNode(world, pos.toImmutable(), state, updateMask & DIRECTIONS);
+				}
+			}
+			var node = parking.getNode(world, pos);
+			if(node != null) {
+				node.updateInputs(world);
+			}
+			this.processedCount++;
+		}
+		this.stats.recordNodeUpdate(System.nanoTime() - start);
+	}
+}
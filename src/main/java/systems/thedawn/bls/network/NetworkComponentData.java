@@ -7,12 +7,16 @@
  */
 package systems.thedawn.bls.network;
 
-import java.util.EnumMap;
+import java.util.AbstractMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jetbrains.annotations.Nullable;
 
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtElement;
-import net.minecraft.nbt.NbtList;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
 
@@ -20,14 +24,67 @@ import net.minecraft.util.math.Direction;
  * Stores common data for nodes in a network, such as the positions of adjacent nodes.
  */
 public class NetworkComponentData {
+	private static final String FORMAT = "Format";
 	private static final String CONNECTIONS = "Connections";
+	private static final String LINKS = "Links";
 	private static final String POWER_LEVEL = "Power";
 	private static final String SIGNAL_LEVEL = "Signal";
+	// missing from data written before epochs, which reads as unknown
+	private static final String EPOCH = "Epoch";
+	private static final String LINK_EPOCHS = "LinkEpochs";
+
+	/**
+	 * Epoch that never matches, for connections whose other end has not been checked.
+	 */
+	public static final int UNKNOWN_EPOCH = 0;
+
+	/**
+	 * The NBT format written by this version. Format 0 stores each connection as a compound with absolute
+	 * coordinates; format 1 packs connections into a long array with positions relative to the node.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Signal level of nodes out of range of any signal source.
+	 */
+	public static final int NO_SIGNAL = Byte.MAX_VALUE;
+
+	/**
+	 * The highest power level that can be stored.
+	 */
+	public static final int MAX_POWER = Byte.MAX_VALUE;
+
+	/**
+	 * The directions which have a connection, as bits indexed by direction ID.
+	 */
+	private int connectionMask;
 
 	/**
-	 * Connection data for each of the six possible directions.
+	 * Positions of the connected nodes, by direction ID.
 	 */
-	private final EnumMap<Direction, Connection> connections;
+	private final long[] connectionPositions;
+
+	/**
+	 * The direction from which each connected node connects back, and the face it is on, packed as
+	 * {@code dir | face << 3}, by direction ID.
+	 */
+	private final byte[] connectionDirs;
+
+	/**
+	 * Distances to the connected nodes, by direction ID.
+	 */
+	private final int[] connectionDistances;
+
+	/**
+	 * The epoch of this node's connections, changed whenever they change. New nodes start at a random
+	 * epoch, so a node replaced while its neighbors were unloaded is unlikely to match its old epoch.
+	 */
+	private int epoch;
+
+	/**
+	 * The epochs of the connected nodes when their connections were last checked, by direction ID.
+	 */
+	private final int[] linkEpochs;
 
 	/**
 	 * The power level at this node. Power is not lost over distance, but is used up by components.
@@ -40,35 +97,221 @@ public class NetworkComponentData {
 	private int signalLevel;
 
 	public NetworkComponentData() {
-		this.connections = new EnumMap<>(Direction.class);
+		this.connectionPositions = new long[6];
+		this.connectionDirs = new byte[6];
+		this.connectionDistances = new int[6];
+		this.linkEpochs = new int[6];
+		this.epoch = newEpoch();
+		this.signalLevel = NO_SIGNAL;
+	}
+
+	private static int newEpoch() {
+		int epoch = ThreadLocalRandom.current().nextInt();
+		return epoch == UNKNOWN_EPOCH ? 1 : epoch;
 	}
 
 	public void updateConnection(Direction dir, Connection connection) {
-		this.connections.put(dir, connection);
+		this.setConnection(dir.getId(), connection.pos().asLong(), connection.dir().getId(), connection.face().getId(), connection.distance());
+	}
+
+	/**
+	 * Sets a connection. The link epoch is kept if the connection is the one already there, otherwise
+	 * it is unknown until the other end is seen.
+	 */
+	void setConnection(int dir, long pos, int otherDir, int face, int distance) {
+		if(!this.isConnected(dir, pos, otherDir, distance) || (this.connectionDirs[dir] >> 3) != face) {
+			this.linkEpochs[dir] = UNKNOWN_EPOCH;
+		}
+		this.connectionMask |= 1 << dir;
+		this.connectionPositions[dir] = pos;
+		this.connectionDirs[dir] = (byte)(otherDir | face << 3);
+		this.connectionDistances[dir] = distance;
+	}
+
+	/**
+	 * Whether there is a connection in the given direction to the given node, ignoring its face.
+	 */
+	boolean isConnected(int dir, long pos, int otherDir, int distance) {
+		return (this.connectionMask & 1 << dir) != 0 && this.connectionPositions[dir] == pos &&
+			(this.connectionDirs[dir] & 7) == otherDir && this.connectionDistances[dir] == distance;
 	}
 
 	public void removeConnection(Direction dir) {
-		this.connections.remove(dir);
+		this.connectionMask &= ~(1 << dir.getId());
+	}
+
+	/**
+	 * The epoch of this node's connections. See {@link #advanceEpoch()}.
+	 */
+	public int epoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * Moves this node to a new epoch, after its connections changed.
+	 */
+	public void advanceEpoch() {
+		if(++this.epoch == UNKNOWN_EPOCH) {
+			this.epoch++;
+		}
+	}
+
+	/**
+	 * The epoch of the node in the given direction when the connection to it was last checked, or
+	 * {@link #UNKNOWN_EPOCH}.
+	 */
+	public int linkEpoch(Direction dir) {
+		return this.linkEpochs[dir.getId()];
+	}
+
+	public void setLinkEpoch(Direction dir, int epoch) {
+		this.linkEpochs[dir.getId()] = epoch;
 	}
 
 	public int connectionCount() {
-		return this.connections.size();
+		return Integer.bitCount(this.connectionMask);
+	}
+
+	/**
+	 * The directions which have a connection, as bits indexed by direction ID.
+	 */
+	public int connectionMask() {
+		return this.connectionMask;
+	}
+
+	public boolean hasConnection(Direction dir) {
+		return (this.connectionMask & 1 << dir.getId()) != 0;
+	}
+
+	/**
+	 * The position of the node connected in the given direction, as a long. Only meaningful if there is a connection.
+	 */
+	public long connectionPos(Direction dir) {
+		return this.connectionPositions[dir.getId()];
+	}
+
+	/**
+	 * The direction from which the node connected in the given direction connects back. Only meaningful if there is a connection.
+	 */
+	public Direction connectionDir(Direction dir) {
+		return Direction.byId(this.connectionDirs[dir.getId()] & 7);
+	}
+
+	/**
+	 * The face the node connected in the given direction is on. Only meaningful if there is a connection.
+	 */
+	public Direction connectionFace(Direction dir) {
+		return Direction.byId(this.connectionDirs[dir.getId()] >> 3);
+	}
+
+	/**
+	 * The distance to the node connected in the given direction. Only meaningful if there is a connection.
+	 */
+	public int connectionDistance(Direction dir) {
+		return this.connectionDistances[dir.getId()];
 	}
 
+	@Nullable
+	public Connection connection(Direction dir) {
+		if(!this.hasConnection(dir)) {
+			return null;
+		}
+		int i = dir.getId();
+		return new Connection(
+			Direction.byId(this.connectionDirs[i] & 7),
+			BlockPos.fromLong(this.connectionPositions[i]),
+			Direction.byId(this.connectionDirs[i] >> 3),
+			this.connectionDistances[i]
+		);
+	}
+
+	/**
+	 * A view of the connections of this node. Connection objects are created during iteration.
+	 */
 	public Iterable<Map.Entry<Direction, Connection>> connections() {
-		return this.connections.entrySet();
+		return () -> new Iterator<>() {
+			private int remaining = NetworkComponentData.this.connectionMask;
+
+			@Override
+			public boolean hasNext() {
+				return this.remaining != 0;
+			}
+
+			@Override
+			public Map.Entry<Direction, Connection> next() {
+				if(this.remaining == 0) {
+					throw new NoSuchElementException();
+				}
+				var dir = Direction.byId(Integer.numberOfTrailingZeros(this.remaining));
+				this.remaining &= this.remaining - 1;
+				return new AbstractMap.SimpleImmutableEntry<>(dir, NetworkComponentData.this.connection(dir));
+			}
+		};
+	}
+
+	public int powerLevel() {
+		return this.powerLevel;
+	}
+
+	public int signalLevel() {
+		return this.signalLevel;
+	}
+
+	/**
+	 * Sets the power level at this node.
+	 *
+	 * @return Whether the power level changed.
+	 */
+	public boolean setPowerLevel(int powerLevel) {
+		int old = this.powerLevel;
+		this.powerLevel = Math.max(0, Math.min(powerLevel, MAX_POWER));
+		return old != this.powerLevel;
+	}
+
+	/**
+	 * Sets the signal level at this node.
+	 *
+	 * @return Whether the signal level changed.
+	 */
+	public boolean setSignalLevel(int signalLevel) {
+		int old = this.signalLevel;
+		this.signalLevel = Math.min(signalLevel, NO_SIGNAL);
+		return old != this.signalLevel;
+	}
+
+	/**
+	 * The NBT format version of node data, 0 if it predates versioning.
+	 */
+	public static int formatVersion(NbtCompound nbt) {
+		return nbt.getInt(FORMAT);
 	}
 
 	/**
 	 * Reads this data from NBT.
+	 *
+	 * @param origin The position of the node.
 	 */
-	public void readNbt(NbtCompound nbt) {
-		var connectionNbt = nbt.getList(CONNECTIONS, NbtElement.COMPOUND_TYPE);
-		for(var element : connectionNbt) {
-			this.readConnection((NbtCompound)element);
+	public void readNbt(NbtCompound nbt, BlockPos origin) {
+		this.connectionMask = 0;
+		if(formatVersion(nbt) >= 1) {
+			var links = nbt.getLongArray(LINKS);
+			var linkEpochs = nbt.getIntArray(LINK_EPOCHS);
+			for(int i = 0; i + 1 < links.length; i += 2) {
+				int dir = this.readConnection(origin, links[i], links[i + 1]);
+				if(dir >= 0 && i / 2 < linkEpochs.length) {
+					this.linkEpochs[dir] = linkEpochs[i / 2];
+				}
+			}
+		} else {
+			var connectionNbt = nbt.getList(CONNECTIONS, NbtElement.COMPOUND_TYPE);
+			for(var element : connectionNbt) {
+				this.readConnection((NbtCompound)element);
+			}
 		}
 		this.powerLevel = Math.max(0, nbt.getByte(POWER_LEVEL));
-		this.signalLevel = Math.max(0, nbt.getByte(SIGNAL_LEVEL));
+		this.signalLevel = nbt.contains(SIGNAL_LEVEL) ? Math.max(0, nbt.getByte(SIGNAL_LEVEL)) : NO_SIGNAL;
+		int epoch = nbt.getInt(EPOCH);
+		this.epoch = epoch != UNKNOWN_EPOCH ? epoch : newEpoch();
 	}
 
 	private void readConnection(NbtCompound nodeNbt) {
@@ -77,36 +320,87 @@ public class NetworkComponentData {
 		var pos = new BlockPos(nodeNbt.getInt(Connection.POS_X), nodeNbt.getInt(Connection.POS_Y), nodeNbt.getInt(Connection.POS_Z));
 		var face = Direction.byId(nodeNbt.getByte(Connection.FACE));
 		var distance = Math.max(0, nodeNbt.getInt(Connection.DISTANCE));
-		this.connections.put(sourceDir, new Connection(destDir, pos, face, distance));
+		this.updateConnection(sourceDir, new Connection(destDir, pos, face, distance));
+	}
+
+	/**
+	 * @return The ID of the direction read, or -1 if the connection was invalid.
+	 */
+	private int readConnection(BlockPos origin, long offset, long packed) {
+		int sourceDir = (int)packed & 7;
+		int destDir = (int)(packed >>> 3) & 7;
+		int face = (int)(packed >>> 6) & 7;
+		int distance = Math.max(0, (int)(packed >>> 32));
+		if(sourceDir < 6 && destDir < 6 && face < 6) {
+			this.setConnection(sourceDir, unpackOffset(origin.asLong(), offset), destDir, face, distance);
+			return sourceDir;
+		}
+		return -1;
 	}
 
 	/**
 	 * Writes this data to NBT.
+	 *
+	 * @param origin The position of the node.
 	 */
-	public void writeNbt(NbtCompound nbt) {
-		var nodeList = new NbtList();
-		for(var entry : this.connections.entrySet()) {
-			writeConnection(nodeList, entry.getKey(), entry.getValue());
+	public void writeNbt(NbtCompound nbt, BlockPos origin) {
+		var links = new long[this.connectionCount() * 2];
+		var linkEpochs = new int[this.connectionCount()];
+		long originPos = origin.asLong();
+		int i = 0;
+		for(int dirs = this.connectionMask; dirs != 0; dirs &= dirs - 1) {
+			int dir = Integer.numberOfTrailingZeros(dirs);
+			linkEpochs[i / 2] = this.linkEpochs[dir];
+			links[i++] = packOffset(originPos, this.connectionPositions[dir]);
+			links[i++] = dir | (this.connectionDirs[dir] & 0x3f) << 3 | (long)this.connectionDistances[dir] << 32;
 		}
-		nbt.put(CONNECTIONS, nodeList);
+		nbt.putInt(FORMAT, FORMAT_VERSION);
+		nbt.putLongArray(LINKS, links);
+		nbt.putIntArray(LINK_EPOCHS, linkEpochs);
+		nbt.putInt(EPOCH, this.epoch);
 		nbt.putByte(POWER_LEVEL, (byte)this.powerLevel);
 		nbt.putByte(SIGNAL_LEVEL, (byte)this.signalLevel);
 	}
 
-	private static void writeConnection(NbtList nodeList, Direction dir, Connection connection) {
-		var nodeNbt = new NbtCompound();
-		nodeNbt.putByte(Connection.SOURCE_DIR, (byte)dir.getId());
-		nodeNbt.putByte(Connection.DEST_DIR, (byte)connection.dir().getId());
-		nodeNbt.putInt(Connection.POS_X, connection.pos().getX());
-		nodeNbt.putInt(Connection.POS_Y, connection.pos().getY());
-		nodeNbt.putInt(Connection.POS_Z, connection.pos().getZ());
-		nodeNbt.putByte(Connection.FACE, (byte)connection.face().getId());
-		nodeNbt.putInt(Connection.DISTANCE, connection.distance());
-		nodeList.add(nodeNbt);
+	/**
+	 * Packs the offset from one position to another into a long, in the same layout as {@link BlockPos#asLong()}.
+	 * Offsets must fit in a block position, which covers any two positions within 2^25 blocks horizontally.
+	 */
+	public static long packOffset(BlockPos origin, BlockPos pos) {
+		return BlockPos.asLong(pos.getX() - origin.getX(), pos.getY() - origin.getY(), pos.getZ() - origin.getZ());
+	}
+
+	/**
+	 * Packs the offset between two packed positions. See {@link #packOffset(BlockPos, BlockPos)}.
+	 */
+	public static long packOffset(long origin, long pos) {
+		return BlockPos.asLong(
+			BlockPos.unpackLongX(pos) - BlockPos.unpackLongX(origin),
+			BlockPos.unpackLongY(pos) - BlockPos.unpackLongY(origin),
+			BlockPos.unpackLongZ(pos) - BlockPos.unpackLongZ(origin)
+		);
+	}
+
+	/**
+	 * Reverses {@link #packOffset(BlockPos, BlockPos)}.
+	 */
+	public static BlockPos unpackOffset(BlockPos origin, long offset) {
+		return origin.add(BlockPos.unpackLongX(offset), BlockPos.unpackLongY(offset), BlockPos.unpackLongZ(offset));
+	}
+
+	/**
+	 * Reverses {@link #packOffset(BlockPos, BlockPos)} for a packed origin, producing a packed position.
+	 */
+	public static long unpackOffset(long origin, long offset) {
+		return BlockPos.asLong(
+			BlockPos.unpackLongX(origin) + BlockPos.unpackLongX(offset),
+			BlockPos.unpackLongY(origin) + BlockPos.unpackLongY(offset),
+			BlockPos.unpackLongZ(origin) + BlockPos.unpackLongZ(offset)
+		);
 	}
 
 	/**
-	 * Information about the connection between this node and another.
+	 * Information about the connection between this node and another. The NBT keys are those of format 0.
 	 *
 	 * @param dir      The (absolute) direction from which the other node connects to the source node.
 	 * @param pos      The position of the other node in the world.
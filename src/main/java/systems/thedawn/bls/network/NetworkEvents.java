@@ -0,0 +1,214 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import systems.thedawn.bls.BlueLightSpecial;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Delivers changes to node data to subscribers, keyed by node position or network ID. Changes are
+ * collected during the tick and delivered at the end of it, with each listener receiving one batch
+ * listing each changed node once. Nothing is collected while there are no subscriptions.
+ * <p>
+ * Network IDs change when networks merge or split; subscribers to a network should look up the ID of
+ * a node they care about again when they see its connections change.
+ */
+public final class NetworkEvents implements NetworkGraph.Listener {
+	/**
+	 * The changed fields of each node this tick, see {@link NodeSync} for the field bits.
+	 */
+	private final Long2ByteOpenHashMap pending;
+
+	private final Long2ObjectOpenHashMap<List<Listener>> byNode;
+	private final Int2ObjectOpenHashMap<List<Listener>> byNetwork;
+	private int subscriptionCount;
+
+	private long batchCount;
+
+	NetworkEvents() {
+		this.pending = new Long2ByteOpenHashMap();
+		this.byNode = new Long2ObjectOpenHashMap<>();
+		this.byNetwork = new Int2ObjectOpenHashMap<>();
+	}
+
+	/**
+	 * Subscribes to changes of the node at the given position.
+	 */
+	public Subscription subscribeNode(BlockPos pos, Listener listener) {
+		long key = pos.asLong();
+		this.byNode.computeIfAbsent(key, k -> new ArrayList<>()).add(listener);
+		this.subscriptionCount++;
+		return () -> {
+			var listeners = this.byNode.get(key);
+			if(listeners != null && listeners.remove(listener)) {
+				this.subscriptionCount--;
+				if(listeners.isEmpty()) {
+					this.byNode.remove(key);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Subscribes to changes of the nodes in the network with the given ID, as of the end of the tick.
+	 */
+	public Subscription subscribeNetwork(int networkId, Listener listener) {
+		this.byNetwork.computeIfAbsent(networkId, k -> new ArrayList<>()).add(listener);
+		this.subscriptionCount++;
+		return () -> {
+			var listeners = this.byNetwork.get(networkId);
+			if(listeners != null && listeners.remove(listener)) {
+				this.subscriptionCount--;
+				if(listeners.isEmpty()) {
+					this.byNetwork.remove(networkId);
+				}
+			}
+		};
+	}
+
+	public int subscriptionCount() {
+		return this.subscriptionCount;
+	}
+
+	public long batchCount() {
+		return this.batchCount;
+	}
+
+	/**
+	 * Records changed fields of a node.
+	 *
+	 * @param fields The changed fields, as a combination of {@link NodeSync#CONNECTIONS}, {@link NodeSync#POWER}
+	 *               and {@link NodeSync#SIGNAL}.
+	 */
+	public void markChanged(BlockPos pos, int fields) {
+		if(this.subscriptionCount == 0) {
+			return;
+		}
+		long key = pos.asLong();
+		this.pending.put(key, (byte)(this.pending.get(key) | fields));
+	}
+
+	@Override
+	public void onNodeRemoved(NetworkGraph.Node node) {
+		// subscribers to a removed node see it lose its connections
+		if(this.subscriptionCount != 0) {
+			this.pending.put(node.pos, (byte)(this.pending.get(node.pos) | NodeSync.CONNECTIONS));
+		}
+	}
+
+	/**
+	 * Delivers the changes made this tick.
+	 */
+	void tick(ServerWorld world, NetworkGraph graph) {
+		if(this.pending.isEmpty()) {
+			return;
+		}
+		var batches = new Reference2ObjectOpenHashMap<Listener, Changes>();
+		for(var entry : this.pending.long2ByteEntrySet()) {
+			long pos = entry.getLongKey();
+			int fields = entry.getByteValue();
+			var nodeListeners = this.byNode.get(pos);
+			if(nodeListeners != null) {
+				for(var listener : nodeListeners) {
+					batches.computeIfAbsent(listener, l -> new Changes()).add(pos, fields);
+				}
+			}
+			if(!this.byNetwork.isEmpty()) {
+				var networkListeners = this.byNetwork.get(graph.networkId(pos));
+				if(networkListeners != null) {
+					for(var listener : networkListeners) {
+						batches.computeIfAbsent(listener, l -> new Changes()).add(pos, fields);
+					}
+				}
+			}
+		}
+		// changes made by listeners are delivered next tick
+		this.pending.clear();
+		for(var batch : batches.entrySet()) {
+			this.batchCount++;
+			try {
+				batch.getKey().onChanges(world, batch.getValue());
+			} catch(RuntimeException e) {
+				BlueLightSpecial.LOGGER.error("Network change listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Receives the changes to the nodes it is subscribed to, once per tick with changes.
+	 */
+	@FunctionalInterface
+	public interface Listener {
+		void onChanges(ServerWorld world, Changes changes);
+	}
+
+	/**
+	 * A subscription of a listener, which delivers nothing after being cancelled.
+	 */
+	@FunctionalInterface
+	public interface Subscription {
+		void cancel();
+	}
+
+	/**
+	 * The nodes changed during a tick, each listed once.
+	 */
+	public static final class Changes {
+		private long[] positions;
+		private byte[] fields;
+		private int size;
+
+		private Changes() {
+			this.positions = new long[4];
+			this.fields = new byte[4];
+		}
+
+		private void add(long pos, int fields) {
+			// a listener subscribed to both a node and its network sees the node twice in a row
+			if(this.size > 0 && this.positions[this.size - 1] == pos) {
+				this.fields[this.size - 1] |= (byte)fields;
+				return;
+			}
+			if(this.size == this.positions.length) {
+				this.positions = Arrays.copyOf(this.positions, this.size * 2);
+				this.fields = Arrays.copyOf(this.fields, this.size * 2);
+			}
+			this.positions[this.size] = pos;
+			this.fields[this.size] = (byte)fields;
+			this.size++;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+		/**
+		 * The position of the i-th changed node, as a packed block position.
+		 */
+		public long pos(int i) {
+			return this.positions[i];
+		}
+
+		/**
+		 * The fields that changed at the i-th node, see {@link NodeSync} for the field bits.
+		 */
+		public int fields(int i) {
+			return this.fields[i];
+		}
+	}
+}
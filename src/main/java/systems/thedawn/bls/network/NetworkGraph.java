@@ -0,0 +1,648 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.util.math.Direction;
+
+/**
+ * The graph of nodes and connections in a world, partitioned into networks of connected nodes.
+ * Connectivity is maintained incrementally: joining two networks relabels the smaller one, and
+ * removing a connection searches outward from both ends to find whether, and where, the network splits.
+ * <p>
+ * Nodes stay in the graph while they are unloaded, since their networks may reach into loaded chunks.
+ * A network with no loaded nodes left is evicted once it has stayed that way for {@link #EVICT_DELAY}
+ * ticks; its nodes are added back from their saved data when they load again.
+ */
+public final class NetworkGraph {
+	/**
+	 * Network ID for positions without a node.
+	 */
+	public static final int NO_NETWORK = 0;
+
+	/**
+	 * Ticks a network must go without loaded nodes before it is evicted.
+	 */
+	public static final int EVICT_DELAY = 6000;
+
+	/**
+	 * Most networks checked for eviction per tick.
+	 */
+	private static final int EVICTIONS_PER_TICK = 64;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private final Long2ObjectOpenHashMap<Node> nodes;
+	private final Int2ObjectOpenHashMap<Network> networks;
+	private final List<Listener> listeners;
+	private int nextNetworkId;
+
+	/**
+	 * Networks without loaded nodes, in the order they lost their last one.
+	 */
+	private final ArrayDeque<Network> evictions;
+	private long time;
+	private long evictedCount;
+
+	NetworkGraph() {
+		this.nodes = new Long2ObjectOpenHashMap<>();
+		this.networks = new Int2ObjectOpenHashMap<>();
+		this.listeners = new ArrayList<>();
+		this.nextNetworkId = NO_NETWORK + 1;
+		this.evictions = new ArrayDeque<>();
+	}
+
+	void addListener(Listener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * The ID of the network containing the node at the given position, or {@link #NO_NETWORK}.
+	 */
+	public int networkId(long pos) {
+		var node = this.nodes.get(pos);
+		return node == null ? NO_NETWORK : node.network.id;
+	}
+
+	/**
+	 * The number of nodes in the given network.
+	 */
+	public int networkSize(int networkId) {
+		var network = this.networks.get(networkId);
+		return network == null ? 0 : network.nodes.size();
+	}
+
+	@Nullable
+	Network network(int networkId) {
+		return this.networks.get(networkId);
+	}
+
+	public int nodeCount() {
+		return this.nodes.size();
+	}
+
+	public int networkCount() {
+		return this.networks.size();
+	}
+
+	/**
+	 * The number of nodes evicted along with their unloaded networks.
+	 */
+	public long evictedCount() {
+		return this.evictedCount;
+	}
+
+	/**
+	 * Records whether the node at the given position is loaded. Does nothing if the graph doesn't know
+	 * the node.
+	 */
+	public void setLoaded(long pos, boolean loaded) {
+		var node = this.nodes.get(pos);
+		if(node == null || node.loaded == loaded) {
+			return;
+		}
+		node.loaded = loaded;
+		node.network.loadedCount += loaded ? 1 : -1;
+		this.checkUnloaded(node.network);
+	}
+
+	/**
+	 * Records the face the node at the given position is on. Does nothing if the graph doesn't know the
+	 * node.
+	 */
+	public void setFace(long pos, Direction face) {
+		var node = this.nodes.get(pos);
+		if(node != null) {
+			node.face = face.getId();
+		}
+	}
+
+	/**
+	 * Queues the network of the node at the given position for eviction if it has no loaded nodes, e.g.
+	 * because it was just loaded from storage.
+	 */
+	void checkUnloaded(long pos) {
+		var node = this.nodes.get(pos);
+		if(node != null) {
+			this.checkUnloaded(node.network);
+		}
+	}
+
+	/**
+	 * Evicts networks that have gone without loaded nodes for long enough.
+	 *
+	 * @param time The current world time.
+	 */
+	void tick(long time) {
+		this.time = time;
+		for(int i = 0; i < EVICTIONS_PER_TICK && !this.evictions.isEmpty(); i++) {
+			var network = this.evictions.peek();
+			if(network.queuedEvictTime > time) {
+				break;
+			}
+			this.evictions.poll();
+			if(network.removed || network.loadedCount != 0) {
+				network.evictQueued = false;
+			} else if(network.evictTime > time) {
+				// nodes loaded and unloaded again while it waited
+				network.queuedEvictTime = network.evictTime;
+				this.evictions.add(network);
+			} else {
+				network.evictQueued = false;
+				this.evict(network);
+			}
+		}
+	}
+
+	private void checkUnloaded(Network network) {
+		if(network.loadedCount != 0 || network.removed) {
+			return;
+		}
+		network.evictTime = this.time + EVICT_DELAY;
+		if(!network.evictQueued) {
+			network.evictQueued = true;
+			network.queuedEvictTime = network.evictTime;
+			this.evictions.add(network);
+		}
+	}
+
+	/**
+	 * Drops every node of a network without treating them as removed from the world.
+	 */
+	private void evict(Network network) {
+		for(var itr = network.nodes.iterator(); itr.hasNext(); ) {
+			var node = this.nodes.remove(itr.nextLong());
+			node.removed = true;
+			for(var listener : this.listeners) {
+				listener.onNodeEvicted(node);
+			}
+		}
+		this.evictedCount += network.nodes.size();
+		this.removeNetwork(network);
+	}
+
+	/**
+	 * The positions of every node in the graph.
+	 */
+	LongSet positions() {
+		return this.nodes.keySet();
+	}
+
+	/**
+	 * Adds a node and its existing connections to the graph.
+	 */
+	public void addNode(long pos, NetworkComponentData data) {
+		this.nodeAt(pos);
+		for(int dirs = data.connectionMask(); dirs != 0; dirs &= dirs - 1) {
+			var dir = Direction.byId(Integer.numberOfTrailingZeros(dirs));
+			this.connect(pos, dir, data.connectionPos(dir), data.connectionDir(dir), data.connectionDistance(dir));
+		}
+	}
+
+	/**
+	 * Overwrites the connections stored in a node's data with those in the graph, if the graph knows the node.
+	 * Connections made while a node was unloaded are only recorded in the graph. Connections that match
+	 * are left alone, so their link epochs can still be trusted, see {@link ConnectionValidator}.
+	 *
+	 * @param face The face the node is on, which is shared by all connected nodes.
+	 * @return Whether the graph knew the node.
+	 */
+	public boolean copyConnections(long pos, NetworkComponentData data, Direction face) {
+		var node = this.nodes.get(pos);
+		if(node == null) {
+			return false;
+		}
+		for(int i = 0; i < 6; i++) {
+			var neighbor = node.neighbors[i];
+			if(neighbor != null) {
+				// a saved connection the graph agrees with keeps its link epoch
+				if(!data.isConnected(i, neighbor.pos, node.neighborDirs[i], node.distances[i])) {
+					data.setConnection(i, neighbor.pos, node.neighborDirs[i], face.getId(), node.distances[i]);
+				}
+			} else {
+				data.removeConnection(DIRECTIONS[i]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a node and all of its connections from the graph.
+	 */
+	public void removeNode(long pos) {
+		var node = this.nodes.remove(pos);
+		if(node == null) {
+			return;
+		}
+		node.removed = true;
+		var neighbors = new Node[6];
+		int count = 0;
+		for(var dir : DIRECTIONS) {
+			var neighbor = this.unlink(node, dir);
+			if(neighbor != null && neighbor != node) {
+				neighbors[count++] = neighbor;
+			}
+		}
+		this.leave(node);
+		for(var listener : this.listeners) {
+			listener.onNodeRemoved(node);
+		}
+		for(int i = 1; i < count; i++) {
+			for(int j = 0; j < i; j++) {
+				this.separate(neighbors[j], neighbors[i]);
+			}
+		}
+	}
+
+	/**
+	 * Connects two nodes, replacing any existing connections in the given directions.
+	 *
+	 * @param pos      The position of the first node.
+	 * @param dir      The direction of the connection from the first node.
+	 * @param other    The position of the second node.
+	 * @param otherDir The direction of the connection from the second node.
+	 * @param distance The distance along the connection.
+	 */
+	public void connect(long pos, Direction dir, long other, Direction otherDir, int distance) {
+		var node = this.nodeAt(pos);
+		var otherNode = this.nodeAt(other);
+		int i = dir.getId();
+		int j = otherDir.getId();
+		if(node.neighbors[i] == otherNode && node.neighborDirs[i] == j) {
+			if(node.distances[i] != distance) {
+				node.distances[i] = distance;
+				otherNode.distances[j] = distance;
+				for(var listener : this.listeners) {
+					listener.onConnected(node, otherNode, distance);
+				}
+			}
+			return;
+		}
+		// link first so that the replaced connections usually have a short way around
+		var replaced = this.unlink(node, dir);
+		var otherReplaced = this.unlink(otherNode, otherDir);
+		node.neighbors[i] = otherNode;
+		node.neighborDirs[i] = j;
+		node.distances[i] = distance;
+		otherNode.neighbors[j] = node;
+		otherNode.neighborDirs[j] = i;
+		otherNode.distances[j] = distance;
+		this.union(node.network, otherNode.network);
+		for(var listener : this.listeners) {
+			listener.onConnected(node, otherNode, distance);
+		}
+		if(replaced != null) {
+			this.separate(node, replaced);
+		}
+		if(otherReplaced != null) {
+			this.separate(otherNode, otherReplaced);
+		}
+	}
+
+	/**
+	 * Removes the connection from a node in the given direction.
+	 */
+	public void disconnect(long pos, Direction dir) {
+		var node = this.nodes.get(pos);
+		if(node == null) {
+			return;
+		}
+		var neighbor = this.unlink(node, dir);
+		if(neighbor != null) {
+			this.separate(node, neighbor);
+		}
+	}
+
+	@Nullable
+	Node node(long pos) {
+		return this.nodes.get(pos);
+	}
+
+	Node nodeAt(long pos) {
+		var node = this.nodes.get(pos);
+		if(node == null) {
+			node = new Node(pos);
+			this.nodes.put(pos, node);
+			var network = this.newNetwork();
+			network.nodes.add(pos);
+			node.network = network;
+			this.notifyNetworkChanged(network);
+		}
+		return node;
+	}
+
+	/**
+	 * Clears both halves of the connection from a node in the given direction.
+	 *
+	 * @return The node on the other end, or null if there was no connection.
+	 */
+	@Nullable
+	private Node unlink(Node node, Direction dir) {
+		int i = dir.getId();
+		var neighbor = node.neighbors[i];
+		if(neighbor == null) {
+			return null;
+		}
+		int j = node.neighborDirs[i];
+		if(neighbor.neighbors[j] == node && neighbor.neighborDirs[j] == i) {
+			neighbor.neighbors[j] = null;
+		}
+		node.neighbors[i] = null;
+		for(var listener : this.listeners) {
+			listener.onDisconnected(node, neighbor);
+		}
+		return neighbor;
+	}
+
+	private Network newNetwork() {
+		var network = new Network(this.nextNetworkId++);
+		this.networks.put(network.id, network);
+		return network;
+	}
+
+	/**
+	 * Merges two networks, keeping the ID of the larger.
+	 */
+	private void union(Network a, Network b) {
+		if(a == b) {
+			return;
+		}
+		var large = a.nodes.size() >= b.nodes.size() ? a : b;
+		var small = large == a ? b : a;
+		for(var itr = small.nodes.iterator(); itr.hasNext(); ) {
+			long pos = itr.nextLong();
+			this.nodes.get(pos).network = large;
+			large.nodes.add(pos);
+		}
+		large.powerSupply += small.powerSupply;
+		large.powerDemand += small.powerDemand;
+		large.loadedCount += small.loadedCount;
+		this.removeNetwork(small);
+		this.notifyNetworkChanged(large);
+	}
+
+	/**
+	 * Splits two nodes into separate networks if they are no longer connected. Searches from both
+	 * nodes in lockstep, so the cost is bounded by the size of the smaller resulting network.
+	 */
+	private void separate(Node a, Node b) {
+		if(a.network != b.network || a == b) {
+			return;
+		}
+		var search = new Search[] { new Search(a), new Search(b) };
+		while(true) {
+			for(int side = 0; side < 2; side++) {
+				var current = search[side];
+				if(current.queue.isEmpty()) {
+					// this side is fully explored without reaching the other, move it to a new network
+					this.split(a.network, current.visited);
+					return;
+				}
+				var node = current.queue.poll();
+				for(var neighbor : node.neighbors) {
+					if(neighbor == null) {
+						continue;
+					}
+					if(search[1 - side].visited.contains(neighbor.pos)) {
+						// still connected
+						return;
+					}
+					if(current.visited.add(neighbor.pos)) {
+						current.queue.add(neighbor);
+					}
+				}
+			}
+		}
+	}
+
+	private void split(Network network, LongOpenHashSet component) {
+		var split = this.newNetwork();
+		for(var itr = component.iterator(); itr.hasNext(); ) {
+			long pos = itr.nextLong();
+			var node = this.nodes.get(pos);
+			network.nodes.remove(pos);
+			split.nodes.add(pos);
+			node.network = split;
+			split.powerSupply += node.powerSupply;
+			split.powerDemand += node.powerDemand;
+			if(node.loaded) {
+				split.loadedCount++;
+			}
+		}
+		network.powerSupply -= split.powerSupply;
+		network.powerDemand -= split.powerDemand;
+		network.loadedCount -= split.loadedCount;
+		this.checkUnloaded(network);
+		this.checkUnloaded(split);
+		this.notifyNetworkChanged(network);
+		this.notifyNetworkChanged(split);
+	}
+
+	private void leave(Node node) {
+		var network = node.network;
+		network.nodes.remove(node.pos);
+		network.powerSupply -= node.powerSupply;
+		network.powerDemand -= node.powerDemand;
+		if(node.loaded) {
+			network.loadedCount--;
+		}
+		if(network.nodes.isEmpty()) {
+			this.removeNetwork(network);
+		} else {
+			this.checkUnloaded(network);
+			this.notifyNetworkChanged(network);
+		}
+	}
+
+	private void removeNetwork(Network network) {
+		this.networks.remove(network.id);
+		network.removed = true;
+	}
+
+	private void notifyNetworkChanged(Network network) {
+		for(var listener : this.listeners) {
+			listener.onNetworkChanged(network);
+		}
+	}
+
+	/**
+	 * A node in the graph.
+	 */
+	static final class Node {
+		final long pos;
+
+		/**
+		 * Connected nodes, indexed by direction ID.
+		 */
+		final Node[] neighbors;
+
+		/**
+		 * Direction IDs of the connections from the connected nodes back to this node.
+		 */
+		final int[] neighborDirs;
+
+		/**
+		 * Connection distances, indexed by direction ID.
+		 */
+		final int[] distances;
+
+		Network network;
+
+		/**
+		 * Whether this node has been removed from the graph.
+		 */
+		boolean removed;
+
+		/**
+		 * Whether the node's block entity is loaded.
+		 */
+		boolean loaded;
+
+		/**
+		 * The ID of the face the node is on, or -1 if its block entity hasn't been loaded.
+		 */
+		int face = -1;
+
+		/**
+		 * Connection distance to the nearest signal source.
+		 */
+		int signal;
+
+		/**
+		 * The next node on the shortest path to the nearest signal source.
+		 */
+		@Nullable
+		Node signalParent;
+
+		boolean signalSource;
+		boolean signalInvalid;
+		boolean signalChanged;
+
+		/**
+		 * Power supplied to the network by this node.
+		 */
+		int powerSupply;
+
+		/**
+		 * Power used by this node.
+		 */
+		int powerDemand;
+
+		Node(long pos) {
+			this.pos = pos;
+			this.neighbors = new Node[6];
+			this.neighborDirs = new int[6];
+			this.distances = new int[6];
+			Arrays.fill(this.distances, Integer.MAX_VALUE);
+			this.signal = NetworkComponentData.NO_SIGNAL;
+		}
+	}
+
+	/**
+	 * A set of connected nodes.
+	 */
+	static final class Network {
+		final int id;
+		final LongOpenHashSet nodes;
+
+		/**
+		 * Total power supplied by nodes in this network.
+		 */
+		long powerSupply;
+
+		/**
+		 * Total power used by nodes in this network.
+		 */
+		long powerDemand;
+
+		/**
+		 * The power level last distributed to nodes in this network.
+		 */
+		int powerLevel;
+
+		boolean powerDirty;
+
+		/**
+		 * Whether this network has been merged into another or lost all its nodes.
+		 */
+		boolean removed;
+
+		/**
+		 * The number of nodes in this network whose block entities are loaded.
+		 */
+		int loadedCount;
+
+		/**
+		 * Whether this network is waiting to be evicted, the earliest time it may be, and the time it
+		 * was given when it was queued.
+		 */
+		boolean evictQueued;
+		long evictTime;
+		long queuedEvictTime;
+
+		Network(int id) {
+			this.id = id;
+			this.nodes = new LongOpenHashSet();
+		}
+	}
+
+	/**
+	 * Receives changes to the graph as they happen.
+	 */
+	interface Listener {
+		/**
+		 * Called when two nodes are connected, or the distance of their connection changes.
+		 */
+		default void onConnected(Node a, Node b, int distance) {
+		}
+
+		default void onDisconnected(Node a, Node b) {
+		}
+
+		/**
+		 * Called after a node and all of its connections have been removed.
+		 */
+		default void onNodeRemoved(Node node) {
+		}
+
+		/**
+		 * Called when a node is dropped from the graph along with the rest of its unloaded network. The
+		 * node is still in the world, and is added back when it loads.
+		 */
+		default void onNodeEvicted(Node node) {
+		}
+
+		/**
+		 * Called when nodes join or leave a network.
+		 */
+		default void onNetworkChanged(Network network) {
+		}
+	}
+
+	private static final class Search {
+		final ArrayDeque<Node> queue;
+		final LongOpenHashSet visited;
+
+		Search(Node start) {
+			this.queue = new ArrayDeque<>();
+			this.visited = new LongOpenHashSet();
+			this.queue.add(start);
+			this.visited.add(start.pos);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Brings every node in a region up to date in a single pass, for edits too large to handle one node at
+ * a time. Connections are resolved through the segment index, which walks each segment once, so a
+ * region converges within the tick instead of through many discovery steps.
+ */
+public final class NetworkRebuilder {
+	private NetworkRebuilder() {
+	}
+
+	/**
+	 * Rebuilds the nodes in the loaded parts of a region.
+	 *
+	 * @return The number of nodes rebuilt.
+	 */
+	public static int rebuild(ServerWorld world, BlockBox box) {
+		var wires = new LongArrayList();
+		int minChunkX = ChunkSectionPos.getSectionCoord(box.getMinX());
+		int maxChunkX = ChunkSectionPos.getSectionCoord(box.getMaxX());
+		int minChunkZ = ChunkSectionPos.getSectionCoord(box.getMinZ());
+		int maxChunkZ = ChunkSectionPos.getSectionCoord(box.getMaxZ());
+		int minSectionY = Math.max(ChunkSectionPos.getSectionCoord(box.getMinY()), world.getBottomSectionCoord());
+		int maxSectionY = Math.min(ChunkSectionPos.getSectionCoord(box.getMaxY()), world.getTopSectionCoord() - 1);
+		for(int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+			for(int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+				if(!world.isChunkLoaded(chunkX, chunkZ)) {
+					continue;
+				}
+				var chunk = world.getChunk(chunkX, chunkZ);
+				for(int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+					var section = chunk.getSection(chunk.getSectionIndex(ChunkSectionPos.getBlockCoord(sectionY)));
+					if(section.isEmpty() || !section.hasAny(NetworkComponents::isComponent)) {
+						continue;
+					}
+					int minX = Math.max(box.getMinX(), ChunkSectionPos.getBlockCoord(chunkX));
+					int maxX = Math.min(box.getMaxX(), ChunkSectionPos.getBlockCoord(chunkX) + 15);
+					int minY = Math.max(box.getMinY(), ChunkSectionPos.getBlockCoord(sectionY));
+					int maxY = Math.min(box.getMaxY(), ChunkSectionPos.getBlockCoord(sectionY) + 15);
+					int minZ = Math.max(box.getMinZ(), ChunkSectionPos.getBlockCoord(chunkZ));
+					int maxZ = Math.min(box.getMaxZ(), ChunkSectionPos.getBlockCoord(chunkZ) + 15);
+					for(int y = minY; y <= maxY; y++) {
+						for(int z = minZ; z <= maxZ; z++) {
+							for(int x = minX; x <= maxX; x++) {
+								if(NetworkComponents.isComponent(section.getBlockState(x & 15, y & 15, z & 15))) {
+									wires.add(BlockPos.asLong(x, y, z));
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		var parking = WorldNetworks.get(world).parking();
+		var pos = new BlockPos.Mutable();
+		int rebuilt = 0;
+		for(int i = 0; i < wires.size(); i++) {
+			pos.set(wires.getLong(i));
+			if(rebuildNode(world, pos.toImmutable(), parking.getBlockState(world, pos))) {
+				rebuilt++;
+			}
+		}
+		return rebuilt;
+	}
+
+	/**
+	 * Brings a single wire up to date with its block state, resolving all of its connections immediately.
+	 *
+	 * @return Whether the wire is a node.
+	 */
+	public static boolean rebuildNode(ServerWorld world, BlockPos pos, BlockState state) {
+		if(!WireBlockBase.shouldHaveBlockEntity(state)) {
+			// removes any leftover block entity
+			WireBlockBase.updateNode(world, pos, state, 0);
+			return false;
+		}
+		var blockEntity = WorldNetworks.get(world).parking().getNode(world, pos);
+		if(blockEntity == null) {
+			return false;
+		}
+		int connected = WireBlockBase.connectionMask(state);
+		for(int dirs = blockEntity.componentData.connectionMask() & ~connected; dirs != 0; dirs &= dirs - 1) {
+			blockEntity.breakConnection(Direction.byId(Integer.numberOfTrailingZeros(dirs)));
+		}
+		for(int dirs = connected; dirs != 0; dirs &= dirs - 1) {
+			// falls back to stepwise discovery where the segment index can't resolve the connection
+			blockEntity.startDiscovery(Direction.byId(Integer.numberOfTrailingZeros(dirs)));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Finds shortest routes between nodes along connections, using connection distances as edge weights.
+ * Routes are searched with A* over the node graph, and need no chunks loaded. Networks evicted from the
+ * graph are loaded back from the {@link GraphStore} when it is enabled.
+ * <p>
+ * Found routes are cached. A route is dropped when a connection it crosses is broken or changes, and
+ * when a new or shortened connection elsewhere could beat it: every connection spans at least the
+ * Manhattan distance between its nodes, so a connection too far from a route's ends to make a shorter
+ * path leaves the route alone. New connections are collected and checked against the cached routes
+ * once per tick, or before the next lookup. Once there are more new connections than are worth checking,
+ * e.g. during a bulk edit, the whole cache is dropped instead.
+ */
+public final class NetworkRouter implements NetworkGraph.Listener {
+	/**
+	 * The most routes kept, least recently used routes are dropped first.
+	 */
+	private static final int MAX_CACHED = 4096;
+
+	/**
+	 * The most pairs of cached routes and new connections checked at once.
+	 */
+	private static final int MAX_CHECKS = 1 << 16;
+
+	private final NetworkGraph graph;
+	private final GraphStore store;
+	private final LinkedHashMap<Key, Route> routes;
+
+	/**
+	 * Cached routes by the position of each node on them.
+	 */
+	private final Long2ObjectOpenHashMap<ReferenceOpenHashSet<Route>> byNode;
+
+	/**
+	 * Connections made since the cached routes were last checked, as pairs of node positions.
+	 */
+	private final LongArrayList connected;
+
+	/**
+	 * Distances of the connections in {@link #connected}, one per pair.
+	 */
+	private final IntArrayList connectedDistances;
+
+	private long hitCount;
+	private long searchCount;
+	private long invalidatedCount;
+
+	NetworkRouter(NetworkGraph graph, GraphStore store) {
+		this.graph = graph;
+		this.store = store;
+		this.routes = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Route> eldest) {
+				if(this.size() > MAX_CACHED) {
+					NetworkRouter.this.unindex(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		this.byNode = new Long2ObjectOpenHashMap<>();
+		this.connected = new LongArrayList();
+		this.connectedDistances = new IntArrayList();
+	}
+
+	public int cachedCount() {
+		return this.routes.size();
+	}
+
+	public long hitCount() {
+		return this.hitCount;
+	}
+
+	public long searchCount() {
+		return this.searchCount;
+	}
+
+	public long invalidatedCount() {
+		return this.invalidatedCount;
+	}
+
+	/**
+	 * Finds the shortest route between two nodes.
+	 *
+	 * @param from The packed position of the first node.
+	 * @param to   The packed position of the last node.
+	 * @return The route, or null if either position has no node or the nodes aren't connected.
+	 */
+	@Nullable
+	public Route route(long from, long to) {
+		this.store.loadNetwork(from);
+		this.store.loadNetwork(to);
+		this.tick();
+		int network = this.graph.networkId(from);
+		if(network == NetworkGraph.NO_NETWORK || network != this.graph.networkId(to)) {
+			return null;
+		}
+		// routes are cached in one direction and reversed for the other
+		var key = from <= to ? new Key(from, to) : new Key(to, from);
+		var route = this.routes.get(key);
+		if(route != null) {
+			this.hitCount++;
+		} else {
+			this.searchCount++;
+			route = this.search(key.from, key.to);
+			if(route == null) {
+				return null;
+			}
+			this.routes.put(key, route);
+			for(var pos : route.nodes) {
+				this.byNode.computeIfAbsent(pos, k -> new ReferenceOpenHashSet<>()).add(route);
+			}
+		}
+		return route.nodes[0] == from ? route : route.reversed();
+	}
+
+	/**
+	 * A* from one node to another, with the Manhattan distance to the goal as the heuristic.
+	 */
+	@Nullable
+	private Route search(long from, long to) {
+		var start = this.graph.node(from);
+		var goal = this.graph.node(to);
+		if(start == null || goal == null) {
+			return null;
+		}
+		// each reached node gets an index into the per-node arrays
+		var indices = new Reference2IntOpenHashMap<NetworkGraph.Node>();
+		indices.defaultReturnValue(-1);
+		var nodes = new ObjectArrayList<NetworkGraph.Node>();
+		var costs = new IntArrayList();
+		var parents = new IntArrayList();
+		var open = new Heap();
+		indices.put(start, 0);
+		nodes.add(start);
+		costs.add(0);
+		parents.add(-1);
+		open.push(heuristic(from, to), 0);
+		while(!open.isEmpty()) {
+			long entry = open.pop();
+			int index = (int)entry;
+			var node = nodes.get(index);
+			int cost = costs.getInt(index);
+			if(entry >>> 32 > (long)cost + heuristic(node.pos, to)) {
+				// a shorter way here was found after this entry was pushed
+				continue;
+			}
+			if(node == goal) {
+				return this.buildRoute(nodes, costs, parents, index);
+			}
+			for(int i = 0; i < 6; i++) {
+				var neighbor = node.neighbors[i];
+				if(neighbor == null || neighbor == node) {
+					continue;
+				}
+				long next = (long)cost + node.distances[i];
+				long priority = next + heuristic(neighbor.pos, to);
+				if(priority > Integer.MAX_VALUE) {
+					// keeps priorities within the heap's entries
+					continue;
+				}
+				int neighborIndex = indices.getInt(neighbor);
+				if(neighborIndex < 0) {
+					neighborIndex = nodes.size();
+					indices.put(neighbor, neighborIndex);
+					nodes.add(neighbor);
+					costs.add((int)next);
+					parents.add(index);
+				} else if(next < costs.getInt(neighborIndex)) {
+					costs.set(neighborIndex, (int)next);
+					parents.set(neighborIndex, index);
+				} else {
+					continue;
+				}
+				open.push(priority, neighborIndex);
+			}
+		}
+		return null;
+	}
+
+	private Route buildRoute(ObjectArrayList<NetworkGraph.Node> nodes, IntArrayList costs, IntArrayList parents, int goal) {
+		int length = 0;
+		for(int i = goal; i >= 0; i = parents.getInt(i)) {
+			length++;
+		}
+		var positions = new long[length];
+		for(int i = goal, j = length - 1; i >= 0; i = parents.getInt(i), j--) {
+			positions[j] = nodes.get(i).pos;
+		}
+		return new Route(positions, costs.getInt(goal));
+	}
+
+	/**
+	 * The Manhattan distance between two positions, which no path of connections can be shorter than.
+	 */
+	private static long heuristic(long a, long b) {
+		return (long)Math.abs(BlockPos.unpackLongX(a) - BlockPos.unpackLongX(b)) +
+			Math.abs(BlockPos.unpackLongY(a) - BlockPos.unpackLongY(b)) +
+			Math.abs(BlockPos.unpackLongZ(a) - BlockPos.unpackLongZ(b));
+	}
+
+	@Override
+	public void onConnected(NetworkGraph.Node a, NetworkGraph.Node b, int distance) {
+		if(this.routes.isEmpty()) {
+			return;
+		}
+		if((long)(this.connectedDistances.size() + 1) * this.routes.size() > MAX_CHECKS) {
+			this.invalidateAll();
+			return;
+		}
+		this.connected.add(a.pos);
+		this.connected.add(b.pos);
+		this.connectedDistances.add(distance);
+	}
+
+	/**
+	 * Drops the cached routes that the connections made since the last call could beat or change.
+	 */
+	void tick() {
+		if(this.connectedDistances.isEmpty()) {
+			return;
+		}
+		var stale = new ReferenceOpenHashSet<Route>();
+		for(int i = 0; i < this.connectedDistances.size(); i++) {
+			long a = this.connected.getLong(2 * i);
+			long b = this.connected.getLong(2 * i + 1);
+			// only routes through one end can cross the connection
+			var through = this.byNode.get(a);
+			if(through != null) {
+				for(var route : through) {
+					if(route.crosses(a, b)) {
+						stale.add(route);
+					}
+				}
+			}
+		}
+		for(var route : this.routes.values()) {
+			long from = route.nodes[0];
+			long to = route.nodes[route.nodes.length - 1];
+			for(int i = 0; i < this.connectedDistances.size(); i++) {
+				long a = this.connected.getLong(2 * i);
+				long b = this.connected.getLong(2 * i + 1);
+				// the shortest path that could use the connection
+				long bound = Math.min(heuristic(from, a) + heuristic(b, to), heuristic(from, b) + heuristic(a, to)) + this.connectedDistances.getInt(i);
+				if(bound < route.distance) {
+					stale.add(route);
+					break;
+				}
+			}
+		}
+		for(var route : stale) {
+			this.invalidate(route);
+		}
+		this.connected.clear();
+		this.connectedDistances.clear();
+	}
+
+	/**
+	 * Drops every cached route.
+	 */
+	private void invalidateAll() {
+		this.invalidatedCount += this.routes.size();
+		this.routes.clear();
+		this.byNode.clear();
+		this.connected.clear();
+		this.connectedDistances.clear();
+	}
+
+	@Override
+	public void onDisconnected(NetworkGraph.Node a, NetworkGraph.Node b) {
+		var routes = this.byNode.get(a.pos);
+		if(routes == null) {
+			return;
+		}
+		var stale = new ArrayList<Route>();
+		for(var route : routes) {
+			if(route.crosses(a.pos, b.pos)) {
+				stale.add(route);
+			}
+		}
+		for(var route : stale) {
+			this.invalidate(route);
+		}
+	}
+
+	@Override
+	public void onNodeRemoved(NetworkGraph.Node node) {
+		var routes = this.byNode.get(node.pos);
+		if(routes != null) {
+			for(var route : new ArrayList<>(routes)) {
+				this.invalidate(route);
+			}
+		}
+	}
+
+	@Override
+	public void onNodeEvicted(NetworkGraph.Node node) {
+		this.onNodeRemoved(node);
+	}
+
+	private void invalidate(Route route) {
+		long from = route.nodes[0];
+		long to = route.nodes[route.nodes.length - 1];
+		this.routes.remove(new Key(from, to));
+		this.unindex(route);
+		this.invalidatedCount++;
+	}
+
+	private void unindex(Route route) {
+		for(var pos : route.nodes) {
+			var routes = this.byNode.get(pos);
+			if(routes != null) {
+				routes.remove(route);
+				if(routes.isEmpty()) {
+					this.byNode.remove(pos);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A cache key, with the lower position first.
+	 */
+	private record Key(long from, long to) {
+	}
+
+	/**
+	 * A shortest route between two nodes.
+	 */
+	public static final class Route {
+		private final long[] nodes;
+		private final int distance;
+
+		private Route(long[] nodes, int distance) {
+			this.nodes = nodes;
+			this.distance = distance;
+		}
+
+		/**
+		 * The number of nodes on the route, including both ends.
+		 */
+		public int size() {
+			return this.nodes.length;
+		}
+
+		/**
+		 * The position of the i-th node on the route, as a packed block position.
+		 */
+		public long pos(int i) {
+			return this.nodes[i];
+		}
+
+		/**
+		 * The total connection distance along the route.
+		 */
+		public int distance() {
+			return this.distance;
+		}
+
+		/**
+		 * Whether the route goes directly between the two nodes, in either direction.
+		 */
+		boolean crosses(long a, long b) {
+			for(int i = 1; i < this.nodes.length; i++) {
+				long prev = this.nodes[i - 1];
+				long pos = this.nodes[i];
+				if(prev == a && pos == b || prev == b && pos == a) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private Route reversed() {
+			var reversed = new long[this.nodes.length];
+			for(int i = 0; i < reversed.length; i++) {
+				reversed[i] = this.nodes[this.nodes.length - 1 - i];
+			}
+			return new Route(reversed, this.distance);
+		}
+	}
+
+	/**
+	 * A binary min-heap of entries packing a priority into the high half and a node index into the low
+	 * half.
+	 */
+	private static final class Heap {
+		private long[] entries = new long[16];
+		private int size;
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		void push(long priority, int index) {
+			if(this.size == this.entries.length) {
+				this.entries = Arrays.copyOf(this.entries, this.size * 2);
+			}
+			long entry = priority << 32 | index;
+			int i = this.size++;
+			while(i > 0) {
+				int parent = (i - 1) >>> 1;
+				if(this.entries[parent] <= entry) {
+					break;
+				}
+				this.entries[i] = this.entries[parent];
+				i = parent;
+			}
+			this.entries[i] = entry;
+		}
+
+		long pop() {
+			long top = this.entries[0];
+			long last = this.entries[--this.size];
+			int i = 0;
+			while(true) {
+				int child = 2 * i + 1;
+				if(child >= this.size) {
+					break;
+				}
+				if(child + 1 < this.size && this.entries[child + 1] < this.entries[child]) {
+					child++;
+				}
+				if(last <= this.entries[child]) {
+					break;
+				}
+				this.entries[i] = this.entries[child];
+				i = child;
+			}
+			this.entries[i] = last;
+			return top;
+		}
+	}
+}
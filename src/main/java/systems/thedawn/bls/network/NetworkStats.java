@@ -0,0 +1,178 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import net.minecraft.server.world.ServerWorld;
+
+/**
+ * Counters for the network work done in a world. Totals count from when the world loaded. The
+ * same numbers for each tick are committed as a {@link NetworkTickEvent} for flight recordings.
+ */
+public final class NetworkStats implements NetworkGraph.Listener {
+	private long discoverySteps;
+	private long resolvedDiscoveries;
+	private long queuedDiscoveries;
+	private long connectionsMade;
+	private long connectionsBroken;
+	private long nodeTickNanos;
+	private long nodeUpdateNanos;
+	private int loadedNodes;
+
+	/**
+	 * Totals at the start of the current tick.
+	 */
+	private long tickDiscoverySteps;
+	private long tickConnectionsMade;
+	private long tickConnectionsBroken;
+	private long tickNodeTickNanos;
+	private long tickNodeUpdateNanos;
+
+	/**
+	 * Counts for the last complete tick.
+	 */
+	private long lastDiscoverySteps;
+	private long lastNodeTickNanos;
+	private long lastNodeUpdateNanos;
+
+	NetworkStats() {
+	}
+
+	/**
+	 * Records a cursor moving one block.
+	 */
+	public void recordDiscoveryStep() {
+		this.discoverySteps++;
+	}
+
+	/**
+	 * Records cursors moving the given number of blocks in total.
+	 */
+	public void recordDiscoverySteps(int count) {
+		this.discoverySteps += count;
+	}
+
+	/**
+	 * Records a connection found through the segment index without walking.
+	 */
+	public void recordResolvedDiscovery() {
+		this.resolvedDiscoveries++;
+	}
+
+	/**
+	 * Records discovery queued in the given number of directions.
+	 */
+	public void recordQueuedDiscovery(int count) {
+		this.queuedDiscoveries += count;
+	}
+
+	/**
+	 * Records time spent ticking nodes.
+	 */
+	public void recordNodeTick(long nanos) {
+		this.nodeTickNanos += nanos;
+	}
+
+	/**
+	 * Records time spent bringing nodes up to date with their block states.
+	 */
+	public void recordNodeUpdate(long nanos) {
+		this.nodeUpdateNanos += nanos;
+	}
+
+	void onNodeLoaded() {
+		this.loadedNodes++;
+	}
+
+	void onNodeUnloaded() {
+		this.loadedNodes--;
+	}
+
+	@Override
+	public void onConnected(NetworkGraph.Node a, NetworkGraph.Node b, int distance) {
+		this.connectionsMade++;
+	}
+
+	@Override
+	public void onDisconnected(NetworkGraph.Node a, NetworkGraph.Node b) {
+		this.connectionsBroken++;
+	}
+
+	void beginTick() {
+		this.tickDiscoverySteps = this.discoverySteps;
+		this.tickConnectionsMade = this.connectionsMade;
+		this.tickConnectionsBroken = this.connectionsBroken;
+		this.tickNodeTickNanos = this.nodeTickNanos;
+		this.tickNodeUpdateNanos = this.nodeUpdateNanos;
+	}
+
+	void endTick(ServerWorld world, WorldNetworks networks) {
+		this.lastDiscoverySteps = this.discoverySteps - this.tickDiscoverySteps;
+		this.lastNodeTickNanos = this.nodeTickNanos - this.tickNodeTickNanos;
+		this.lastNodeUpdateNanos = this.nodeUpdateNanos - this.tickNodeUpdateNanos;
+		var event = new NetworkTickEvent();
+		if(event.shouldCommit()) {
+			event.world = world.getRegistryKey().getValue().toString();
+			event.activeNodes = networks.scheduler().activeCount();
+			event.nodesTicked = networks.scheduler().lastTicked();
+			event.nodesDeferred = networks.scheduler().lastDeferred();
+			event.discoverySteps = this.lastDiscoverySteps;
+			event.connectionsMade = this.connectionsMade - this.tickConnectionsMade;
+			event.connectionsBroken = this.connectionsBroken - this.tickConnectionsBroken;
+			event.nodeTickNanos = this.lastNodeTickNanos;
+			event.nodeUpdateNanos = this.lastNodeUpdateNanos;
+			event.commit();
+		}
+	}
+
+	public long discoverySteps() {
+		return this.discoverySteps;
+	}
+
+	public long resolvedDiscoveries() {
+		return this.resolvedDiscoveries;
+	}
+
+	public long queuedDiscoveries() {
+		return this.queuedDiscoveries;
+	}
+
+	public long connectionsMade() {
+		return this.connectionsMade;
+	}
+
+	public long connectionsBroken() {
+		return this.connectionsBroken;
+	}
+
+	public long nodeTickNanos() {
+		return this.nodeTickNanos;
+	}
+
+	public long nodeUpdateNanos() {
+		return this.nodeUpdateNanos;
+	}
+
+	/**
+	 * The number of node block entities currently loaded.
+	 */
+	public int loadedNodes() {
+		return this.loadedNodes;
+	}
+
+	public long lastDiscoverySteps() {
+		return this.lastDiscoverySteps;
+	}
+
+	public long lastNodeTickNanos() {
+		return this.lastNodeTickNanos;
+	}
+
+	public long lastNodeUpdateNanos() {
+		return this.lastNodeUpdateNanos;
+	}
+}
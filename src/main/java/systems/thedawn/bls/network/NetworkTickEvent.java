@@ -0,0 +1,54 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for the network work done in a world during one tick.
+ */
+@Name("bls.NetworkTick")
+@Label("Network Tick")
+@Category("Blue Light Special")
+@Description("Network maintenance done in a world during one tick")
+@StackTrace(false)
+final class NetworkTickEvent extends jdk.jfr.Event {
+	@Label("World")
+	String world;
+
+	@Label("Active Nodes")
+	int activeNodes;
+
+	@Label("Nodes Ticked")
+	int nodesTicked;
+
+	@Label("Nodes Deferred")
+	int nodesDeferred;
+
+	@Label("Discovery Steps")
+	long discoverySteps;
+
+	@Label("Connections Made")
+	long connectionsMade;
+
+	@Label("Connections Broken")
+	long connectionsBroken;
+
+	@Label("Node Tick Time")
+	@Timespan
+	long nodeTickNanos;
+
+	@Label("Node Update Time")
+	@Timespan
+	long nodeUpdateNanos;
+}
@@ -0,0 +1,214 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import jdk.jfr.EventType;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceLinkedOpenHashSet;
+import systems.thedawn.bls.BlsGameRules;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * Ticks only the nodes with pending discovery work. Nodes enroll when they are given work and leave
+ * once it is done, so idle networks cost nothing per tick.
+ * <p>
+ * Work is limited by the {@link BlsGameRules#NETWORK_TICK_BUDGET} rule. Nodes are ticked round-robin,
+ * those near players first, and nodes not reached before the budget runs out are ticked first on the
+ * next tick. Nodes away from players always get a share of the budget. The budget covers only this
+ * discovery work; the rest of the network tick is not limited by it.
+ */
+public final class NodeScheduler {
+	private static final EventType NODE_TICK = EventType.getEventType(NodeTickEvent.class);
+
+	/**
+	 * Distance in chunks from a player within which nodes are ticked first.
+	 */
+	public static final int PRIORITY_RADIUS = 8;
+
+	/**
+	 * Nodes away from players are kept one part in this many of the budget.
+	 */
+	private static final int FAR_SHARE = 4;
+
+	/**
+	 * Active nodes near players, in round-robin order.
+	 */
+	private final ReferenceLinkedOpenHashSet<NetworkNodeBlockEntity> near;
+
+	/**
+	 * Other active nodes, in round-robin order.
+	 */
+	private final ReferenceLinkedOpenHashSet<NetworkNodeBlockEntity> far;
+
+	private final NetworkGraph graph;
+	private final NetworkStats stats;
+
+	/**
+	 * Chunk positions of the players in the world as of the start of the tick.
+	 */
+	private final LongArrayList playerChunks;
+
+	/**
+	 * Number of nodes ticked during the last tick.
+	 */
+	private int lastTicked;
+
+	/**
+	 * Number of active nodes left for the next tick when the budget ran out during the last tick.
+	 */
+	private int lastDeferred;
+
+	NodeScheduler(NetworkGraph graph, NetworkStats stats) {
+		this.near = new ReferenceLinkedOpenHashSet<>();
+		this.far = new ReferenceLinkedOpenHashSet<>();
+		this.graph = graph;
+		this.stats = stats;
+		this.playerChunks = new LongArrayList();
+	}
+
+	/**
+	 * Schedules a node to be ticked until it has no more pending work.
+	 */
+	public void enroll(NetworkNodeBlockEntity node) {
+		if(!this.near.contains(node) && !this.far.contains(node)) {
+			this.queueFor(node).add(node);
+		}
+	}
+
+	public int activeCount() {
+		return this.near.size() + this.far.size();
+	}
+
+	/**
+	 * The number of active nodes near players.
+	 */
+	public int priorityCount() {
+		return this.near.size();
+	}
+
+	public int lastTicked() {
+		return this.lastTicked;
+	}
+
+	public int lastDeferred() {
+		return this.lastDeferred;
+	}
+
+	/**
+	 * The number of discovery cursors held by active nodes.
+	 */
+	public int cursorCount() {
+		int count = 0;
+		for(var node : this.near) {
+			count += node.cursorCount();
+		}
+		for(var node : this.far) {
+			count += node.cursorCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Ticks active nodes until each has been ticked once or the budget runs out. Nodes enrolled during
+	 * the tick are first ticked on the next one.
+	 */
+	public void tick(ServerWorld world) {
+		this.lastTicked = 0;
+		this.lastDeferred = 0;
+		this.updatePlayerChunks(world);
+		if(this.near.isEmpty() && this.far.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		long budget = world.getGameRules().getInt(BlsGameRules.NETWORK_TICK_BUDGET) * 1_000_000L;
+		int nearCount = this.near.size();
+		int farCount = this.far.size();
+		// keep part of the budget so that nodes away from players are not starved
+		long nearBudget = farCount == 0 ? budget : budget - budget / FAR_SHARE;
+		int ticked = this.tickQueue(world, this.near, nearCount, start + nearBudget, 0);
+		ticked += this.tickQueue(world, this.far, farCount, start + budget, ticked);
+		this.lastTicked = ticked;
+		this.lastDeferred = nearCount + farCount - ticked;
+		this.stats.recordNodeTick(System.nanoTime() - start);
+	}
+
+	/**
+	 * Ticks nodes from the front of a queue, moving those with work left to the back of their queue.
+	 *
+	 * @param previous The number of nodes already ticked this tick.
+	 * @return The number of nodes ticked.
+	 */
+	private int tickQueue(ServerWorld world, ReferenceLinkedOpenHashSet<NetworkNodeBlockEntity> queue, int count, long deadline, int previous) {
+		int ticked = 0;
+		while(ticked < count) {
+			// always make some progress, even over budget
+			if(previous + ticked > 0 && System.nanoTime() >= deadline) {
+				break;
+			}
+			var node = queue.removeFirst();
+			ticked++;
+			if(node.isRemoved()) {
+				continue;
+			}
+			this.tickNode(world, node);
+			if(!node.isRemoved() && node.hasPendingWork()) {
+				this.enroll(node);
+			}
+		}
+		return ticked;
+	}
+
+	private void tickNode(ServerWorld world, NetworkNodeBlockEntity node) {
+		if(!NODE_TICK.isEnabled()) {
+			NetworkNodeBlockEntity.tick(world, node.getPos(), node.getCachedState(), node);
+			return;
+		}
+		var event = new NodeTickEvent();
+		long steps = this.stats.discoverySteps();
+		event.begin();
+		NetworkNodeBlockEntity.tick(world, node.getPos(), node.getCachedState(), node);
+		event.end();
+		if(event.shouldCommit()) {
+			var pos = node.getPos();
+			event.x = pos.getX();
+			event.y = pos.getY();
+			event.z = pos.getZ();
+			event.networkId = this.graph.networkId(pos.asLong());
+			event.discoverySteps = this.stats.discoverySteps() - steps;
+			event.commit();
+		}
+	}
+
+	private void updatePlayerChunks(ServerWorld world) {
+		this.playerChunks.clear();
+		for(var player : world.getPlayers()) {
+			if(!player.isSpectator()) {
+				this.playerChunks.add(ChunkPos.toLong(player.getChunkX(), player.getChunkZ()));
+			}
+		}
+	}
+
+	private ReferenceLinkedOpenHashSet<NetworkNodeBlockEntity> queueFor(NetworkNodeBlockEntity node) {
+		var pos = node.getPos();
+		int chunkX = ChunkSectionPos.getSectionCoord(pos.getX());
+		int chunkZ = ChunkSectionPos.getSectionCoord(pos.getZ());
+		for(int i = 0; i < this.playerChunks.size(); i++) {
+			long playerChunk = this.playerChunks.getLong(i);
+			if(Math.abs(ChunkPos.getPackedX(playerChunk) - chunkX) <= PRIORITY_RADIUS &&
+				Math.abs(ChunkPos.getPackedZ(playerChunk) - chunkZ) <= PRIORITY_RADIUS) {
+				return this.near;
+			}
+		}
+		return this.far;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import systems.thedawn.bls.BlueLightSpecial;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.networking.v1.PlayerLookup;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Sends changes to node data to the clients tracking each node. Changes are collected per chunk during
+ * the tick and sent as one packet per chunk at the end of it, with only the fields that changed.
+ * Clients receive the full node data with the chunk, see
+ * {@link NetworkNodeBlockEntity#toInitialChunkDataNbt()}, and with each block change at a node, see
+ * {@link NetworkNodeBlockEntity#toUpdatePacket()}. Changes for nodes the client doesn't have yet are
+ * dropped, as the block change that creates the node carries its data.
+ * <p>
+ * Packet layout: chunk position (long), node count (varint), then for each node the local x and z
+ * (byte), y (varint), changed fields (byte) and the fields themselves. Connections are a direction
+ * mask (byte) followed by, for each direction in it, the zigzag-encoded offset to the other node
+ * (3 varints), its direction and face (byte), and the distance (varint). Levels are one byte each.
+ */
+public final class NodeSync {
+	public static final Identifier CHANNEL = BlueLightSpecial.id("node_sync");
+
+	/**
+	 * Field bit for the connections of a node.
+	 */
+	public static final int CONNECTIONS = 1;
+
+	/**
+	 * Field bit for the power level of a node.
+	 */
+	public static final int POWER = 2;
+
+	/**
+	 * Field bit for the signal level of a node.
+	 */
+	public static final int SIGNAL = 4;
+
+	/**
+	 * The changed fields of each node, by chunk position and then node position.
+	 */
+	private final Long2ObjectOpenHashMap<Long2ByteOpenHashMap> dirty;
+
+	private long packetCount;
+	private long nodeCount;
+
+	NodeSync() {
+		this.dirty = new Long2ObjectOpenHashMap<>();
+	}
+
+	/**
+	 * Marks fields of a node as changed.
+	 *
+	 * @param fields The changed fields, as a combination of {@link #CONNECTIONS}, {@link #POWER} and {@link #SIGNAL}.
+	 */
+	public void markDirty(BlockPos pos, int fields) {
+		long chunk = ChunkPos.toLong(ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getZ()));
+		var nodes = this.dirty.get(chunk);
+		if(nodes == null) {
+			nodes = new Long2ByteOpenHashMap();
+			this.dirty.put(chunk, nodes);
+		}
+		long key = pos.asLong();
+		nodes.put(key, (byte)(nodes.get(key) | fields));
+	}
+
+	public long packetCount() {
+		return this.packetCount;
+	}
+
+	public long nodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * Sends the changes made this tick.
+	 */
+	void tick(ServerWorld world) {
+		if(this.dirty.isEmpty()) {
+			return;
+		}
+		var parking = WorldNetworks.get(world).parking();
+		var pos = new BlockPos.Mutable();
+		for(var entry : this.dirty.long2ObjectEntrySet()) {
+			var chunkPos = new ChunkPos(entry.getLongKey());
+			var players = PlayerLookup.tracking(world, chunkPos);
+			if(players.isEmpty()) {
+				// clients that start tracking the chunk later get the full data with it
+				continue;
+			}
+			var nodes = new ArrayList<NetworkNodeBlockEntity>(entry.getValue().size());
+			var fields = new byte[entry.getValue().size()];
+			for(var itr = entry.getValue().long2ByteEntrySet().iterator(); itr.hasNext(); ) {
+				var node = itr.next();
+				pos.set(node.getLongKey());
+				var blockEntity = DiscoveryParking.isLoaded(world, pos) ? parking.getNode(world, pos) : null;
+				if(blockEntity != null) {
+					fields[nodes.size()] = node.getByteValue();
+					nodes.add(blockEntity);
+				}
+			}
+			if(nodes.isEmpty()) {
+				continue;
+			}
+			var buf = PacketByteBufs.create();
+			buf.writeLong(chunkPos.toLong());
+			buf.writeVarInt(nodes.size());
+			for(int i = 0; i < nodes.size(); i++) {
+				var node = nodes.get(i);
+				writeNode(buf, node.getPos(), fields[i], node.componentData);
+			}
+			var packet = ServerPlayNetworking.createS2CPacket(CHANNEL, buf);
+			for(var player : players) {
+				player.networkHandler.sendPacket(packet);
+			}
+			this.packetCount += players.size();
+			this.nodeCount += nodes.size();
+		}
+		this.dirty.clear();
+	}
+
+	private static void writeNode(PacketByteBuf buf, BlockPos pos, int fields, NetworkComponentData data) {
+		buf.writeByte((pos.getX() & 15) << 4 | pos.getZ() & 15);
+		buf.writeVarInt(pos.getY());
+		buf.writeByte(fields);
+		if((fields & CONNECTIONS) != 0) {
+			buf.writeByte(data.connectionMask());
+			for(int dirs = data.connectionMask(); dirs != 0; dirs &= dirs - 1) {
+				var dir = Direction.byId(Integer.numberOfTrailingZeros(dirs));
+				long other = data.connectionPos(dir);
+				buf.writeVarInt(zigzag(BlockPos.unpackLongX(other) - pos.getX()));
+				buf.writeVarInt(zigzag(BlockPos.unpackLongY(other) - pos.getY()));
+				buf.writeVarInt(zigzag(BlockPos.unpackLongZ(other) - pos.getZ()));
+				buf.writeByte(data.connectionDir(dir).getId() | data.connectionFace(dir).getId() << 3);
+				buf.writeVarInt(data.connectionDistance(dir));
+			}
+		}
+		if((fields & POWER) != 0) {
+			buf.writeByte(data.powerLevel());
+		}
+		if((fields & SIGNAL) != 0) {
+			buf.writeByte(data.signalLevel());
+		}
+	}
+
+	/**
+	 * Reads a packet sent on {@link #CHANNEL}. Safe to call off the main thread.
+	 */
+	public static List<Update> read(PacketByteBuf buf) {
+		var chunkPos = new ChunkPos(buf.readLong());
+		int count = buf.readVarInt();
+		var updates = new ArrayList<Update>(count);
+		for(int i = 0; i < count; i++) {
+			int xz = buf.readUnsignedByte();
+			int y = buf.readVarInt();
+			int x = chunkPos.getStartX() + (xz >> 4);
+			int z = chunkPos.getStartZ() + (xz & 15);
+			var update = new Update(BlockPos.asLong(x, y, z), buf.readUnsignedByte());
+			if((update.fields & CONNECTIONS) != 0) {
+				update.connectionMask = buf.readUnsignedByte() & 0x3f;
+				for(int dirs = update.connectionMask; dirs != 0; dirs &= dirs - 1) {
+					int dir = Integer.numberOfTrailingZeros(dirs);
+					int dx = unzigzag(buf.readVarInt());
+					int dy = unzigzag(buf.readVarInt());
+					int dz = unzigzag(buf.readVarInt());
+					update.connectionPositions[dir] = BlockPos.asLong(x + dx, y + dy, z + dz);
+					update.connectionDirs[dir] = buf.readByte();
+					update.connectionDistances[dir] = buf.readVarInt();
+				}
+			}
+			if((update.fields & POWER) != 0) {
+				update.powerLevel = buf.readByte();
+			}
+			if((update.fields & SIGNAL) != 0) {
+				update.signalLevel = buf.readByte();
+			}
+			updates.add(update);
+		}
+		return updates;
+	}
+
+	private static int zigzag(int value) {
+		return value << 1 ^ value >> 31;
+	}
+
+	private static int unzigzag(int value) {
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	/**
+	 * The changed fields of one node.
+	 */
+	public static final class Update {
+		private final long pos;
+		private final int fields;
+		private int connectionMask;
+		private final long[] connectionPositions;
+		private final byte[] connectionDirs;
+		private final int[] connectionDistances;
+		private int powerLevel;
+		private int signalLevel;
+
+		private Update(long pos, int fields) {
+			this.pos = pos;
+			this.fields = fields;
+			this.connectionPositions = new long[6];
+			this.connectionDirs = new byte[6];
+			this.connectionDistances = new int[6];
+		}
+
+		public long pos() {
+			return this.pos;
+		}
+
+		/**
+		 * Applies the changed fields to a node's data.
+		 */
+		public void apply(NetworkComponentData data) {
+			if((this.fields & CONNECTIONS) != 0) {
+				for(int i = 0; i < 6; i++) {
+					if((this.connectionMask & 1 << i) != 0) {
+						data.setConnection(i, this.connectionPositions[i], this.connectionDirs[i] & 7, this.connectionDirs[i] >> 3 & 7, this.connectionDistances[i]);
+					} else {
+						data.removeConnection(Direction.byId(i));
+					}
+				}
+			}
+			if((this.fields & POWER) != 0) {
+				data.setPowerLevel(this.powerLevel);
+			}
+			if((this.fields & SIGNAL) != 0) {
+				data.setSignalLevel(this.signalLevel);
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a single node tick, for attributing work to specific networks. Disabled
+ * by default, since there can be many per tick.
+ */
+@Name("bls.NodeTick")
+@Label("Node Tick")
+@Category("Blue Light Special")
+@Description("Discovery work done by a single network node")
+@Enabled(false)
+@StackTrace(false)
+final class NodeTickEvent extends jdk.jfr.Event {
+	@Label("X")
+	int x;
+
+	@Label("Y")
+	int y;
+
+	@Label("Z")
+	int z;
+
+	@Label("Network ID")
+	int networkId;
+
+	@Label("Discovery Steps")
+	long discoverySteps;
+}
@@ -0,0 +1,282 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import systems.thedawn.bls.BlsGameRules;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.chunk.PalettedContainer;
+
+/**
+ * Walks discovery cursors on worker threads, over snapshots of the chunk sections around each cursor.
+ * A walk runs until it finds a node, finds the wire broken, or leaves its snapshot; results are applied
+ * to the node on the main thread at the start of the next tick. Every wire change bumps the version of
+ * its section while walks in flight hold it, and walks over sections that changed after they were
+ * copied are discarded.
+ * <p>
+ * Enabled by the {@link BlsGameRules#PARALLEL_DISCOVERY} rule.
+ */
+public final class ParallelDiscovery {
+	/**
+	 * Result of a walk that stopped at the edge of its snapshot.
+	 */
+	public static final int WALK_INCOMPLETE = -3;
+
+	/**
+	 * The most blocks walked in one job, so wire loops without nodes can't keep a worker busy.
+	 */
+	private static final int MAX_WALK = 4096;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(
+		Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+		pool -> {
+			var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("BLS Discovery " + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		},
+		null,
+		true
+	);
+
+	/**
+	 * Versions of sections held by walks in flight, keyed by section position. Sections no walk holds
+	 * aren't tracked, and start over at version 0 when next copied.
+	 */
+	private final Long2IntOpenHashMap sectionVersions;
+
+	/**
+	 * Number of walks in flight holding each section, keyed by section position.
+	 */
+	private final Long2IntOpenHashMap sectionUsers;
+
+	/**
+	 * Sections copied this tick, shared by all walks submitted during the tick. Sections without blocks
+	 * map to null.
+	 */
+	private final Long2ObjectOpenHashMap<PalettedContainer<BlockState>> copies;
+
+	private final ConcurrentLinkedQueue<Walk> completed;
+	private final NetworkStats stats;
+
+	/**
+	 * Number of walks submitted and not yet applied.
+	 */
+	private int inFlight;
+
+	private long submittedCount;
+	private long discardedCount;
+
+	ParallelDiscovery(NetworkStats stats) {
+		this.sectionVersions = new Long2IntOpenHashMap();
+		this.sectionUsers = new Long2IntOpenHashMap();
+		this.copies = new Long2ObjectOpenHashMap<>();
+		this.completed = new ConcurrentLinkedQueue<>();
+		this.stats = stats;
+	}
+
+	/**
+	 * Whether discovery should be submitted to worker threads in the given world.
+	 */
+	public static boolean isEnabled(ServerWorld world) {
+		return world.getGameRules().getBoolean(BlsGameRules.PARALLEL_DISCOVERY);
+	}
+
+	/**
+	 * Records a wire change at the given position, invalidating walks over its section.
+	 */
+	public void onBlockChanged(BlockPos pos) {
+		long key = ChunkSectionPos.toLong(pos);
+		if(this.sectionUsers.containsKey(key)) {
+			this.sectionVersions.addTo(key, 1);
+		}
+	}
+
+	public int inFlightCount() {
+		return this.inFlight;
+	}
+
+	public long submittedCount() {
+		return this.submittedCount;
+	}
+
+	public long discardedCount() {
+		return this.discardedCount;
+	}
+
+	/**
+	 * Submits a walk from a discovery cursor. The cursor's chunk must be loaded.
+	 *
+	 * @param dir      The direction from the node being discovered.
+	 * @param pos      The position of the cursor.
+	 * @param fromDir  The direction the cursor entered its position from.
+	 * @param distance The wire distance from the node to the cursor.
+	 */
+	public void submit(ServerWorld world, NetworkNodeBlockEntity node, Direction dir, long pos, Direction fromDir, int distance) {
+		int x = ChunkSectionPos.getSectionCoord(BlockPos.unpackLongX(pos));
+		int y = ChunkSectionPos.getSectionCoord(BlockPos.unpackLongY(pos));
+		int z = ChunkSectionPos.getSectionCoord(BlockPos.unpackLongZ(pos));
+		// wires move one axis at a time, so a walk can only leave its section through a face
+		var snapshot = new DiscoverySnapshot(7);
+		this.capture(world, snapshot, x, y, z);
+		for(var face : DIRECTIONS) {
+			this.capture(world, snapshot, x + face.getOffsetX(), y + face.getOffsetY(), z + face.getOffsetZ());
+		}
+		var walk = new Walk(node, dir, pos, fromDir, distance, snapshot);
+		this.inFlight++;
+		this.submittedCount++;
+		POOL.execute(() -> {
+			walk.run();
+			this.completed.add(walk);
+		});
+	}
+
+	@SuppressWarnings("deprecation")
+	private void capture(ServerWorld world, DiscoverySnapshot snapshot, int x, int y, int z) {
+		if(!world.isChunkLoaded(x, z)) {
+			return;
+		}
+		long key = ChunkSectionPos.asLong(x, y, z);
+		PalettedContainer<BlockState> copy = null;
+		if(this.copies.containsKey(key)) {
+			copy = this.copies.get(key);
+		} else {
+			if(y >= world.getBottomSectionCoord() && y < world.getTopSectionCoord()) {
+				var chunk = world.getChunk(x, z);
+				var section = chunk.getSection(chunk.getSectionIndex(ChunkSectionPos.getBlockCoord(y)));
+				if(!section.isEmpty()) {
+					copy = section.getBlockStateContainer().copy();
+				}
+			}
+			this.copies.put(key, copy);
+		}
+		this.sectionUsers.addTo(key, 1);
+		snapshot.add(key, copy, this.sectionVersions.get(key));
+	}
+
+	/**
+	 * Applies the walks that finished since the last tick.
+	 */
+	void tick(ServerWorld world) {
+		this.copies.clear();
+		for(Walk walk; (walk = this.completed.poll()) != null; ) {
+			this.inFlight--;
+			this.apply(walk);
+			this.release(walk.snapshot);
+		}
+	}
+
+	private void apply(Walk walk) {
+		var node = walk.node;
+		if(node.isRemoved()) {
+			return;
+		}
+		this.stats.recordDiscoverySteps(walk.steps);
+		if(!this.isCurrent(walk.snapshot)) {
+			this.discardedCount++;
+			node.abandonWalk(walk.dir);
+			return;
+		}
+		node.completeWalk(walk.dir, walk.startPos, walk.startFromDir, walk.startDistance,
+			walk.outcome, walk.pos, walk.fromDir, walk.distance, walk.face);
+	}
+
+	/**
+	 * Stops tracking the versions of a finished walk's sections once no other walk holds them.
+	 */
+	private void release(DiscoverySnapshot snapshot) {
+		for(int i = 0; i < snapshot.size(); i++) {
+			long key = snapshot.sectionKey(i);
+			if(this.sectionUsers.addTo(key, -1) <= 1) {
+				this.sectionUsers.remove(key);
+				this.sectionVersions.remove(key);
+			}
+		}
+	}
+
+	private boolean isCurrent(DiscoverySnapshot snapshot) {
+		for(int i = 0; i < snapshot.size(); i++) {
+			if(this.sectionVersions.get(snapshot.sectionKey(i)) != snapshot.version(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A walk from one cursor. Fields after the snapshot are written by the worker.
+	 */
+	private static final class Walk implements Runnable {
+		final NetworkNodeBlockEntity node;
+		final Direction dir;
+		final long startPos;
+		final Direction startFromDir;
+		final int startDistance;
+		final DiscoverySnapshot snapshot;
+
+		int outcome;
+		long pos;
+		Direction fromDir;
+		int distance;
+		Direction face;
+		int steps;
+
+		Walk(NetworkNodeBlockEntity node, Direction dir, long pos, Direction fromDir, int distance, DiscoverySnapshot snapshot) {
+			this.node = node;
+			this.dir = dir;
+			this.startPos = pos;
+			this.startFromDir = fromDir;
+			this.startDistance = distance;
+			this.snapshot = snapshot;
+			this.pos = pos;
+			this.fromDir = fromDir;
+			this.distance = distance;
+		}
+
+		@Override
+		public void run() {
+			var cursor = new BlockPos.Mutable();
+			while(this.steps < MAX_WALK) {
+				cursor.set(this.pos);
+				if(!this.snapshot.isLoaded(cursor)) {
+					break;
+				}
+				var state = this.snapshot.getBlockState(cursor);
+				this.steps++;
+				int step = NetworkNodeBlockEntity.stepDiscovery(state, this.fromDir);
+				if(step == NetworkNodeBlockEntity.STEP_NODE) {
+					this.outcome = step;
+					this.face = NetworkComponents.face(state);
+					return;
+				}
+				if(step == NetworkNodeBlockEntity.STEP_BROKEN) {
+					this.outcome = step;
+					return;
+				}
+				var next = Direction.byId(step);
+				this.pos = BlockPos.offset(this.pos, next);
+				this.fromDir = next.getOpposite();
+				this.distance++;
+			}
+			this.outcome = WALK_INCOMPLETE;
+		}
+	}
+}
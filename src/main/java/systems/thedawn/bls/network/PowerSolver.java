@@ -0,0 +1,152 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.ArrayList;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * Distributes power within networks. Supply and demand are totalled per network as they change, and
+ * each network whose totals or membership changed is solved once at the end of the tick. Since power
+ * is not lost over distance, every node in a network receives the same power level: whatever is left
+ * of the supply once all components have taken their share.
+ * <p>
+ * Supply and demand come from {@link systems.thedawn.bls.block.NetworkComponent#getPowerSupply} and
+ * {@link systems.thedawn.bls.block.NetworkComponent#getPowerDemand}, read whenever a node loads or is
+ * updated.
+ */
+public final class PowerSolver implements NetworkGraph.Listener {
+	private final NetworkGraph graph;
+
+	/**
+	 * Networks to solve at the end of the tick.
+	 */
+	private final ArrayList<NetworkGraph.Network> dirty;
+
+	PowerSolver(NetworkGraph graph) {
+		this.graph = graph;
+		this.dirty = new ArrayList<>();
+	}
+
+	/**
+	 * Sets the power supplied to its network by the node at the given position.
+	 */
+	public void setSupply(long pos, int supply) {
+		var node = this.graph.nodeAt(pos);
+		if(node.powerSupply == supply) {
+			return;
+		}
+		node.network.powerSupply += supply - node.powerSupply;
+		node.powerSupply = supply;
+		this.markDirty(node.network);
+	}
+
+	/**
+	 * Sets the power used by the node at the given position.
+	 */
+	public void setDemand(long pos, int demand) {
+		var node = this.graph.nodeAt(pos);
+		if(node.powerDemand == demand) {
+			return;
+		}
+		node.network.powerDemand += demand - node.powerDemand;
+		node.powerDemand = demand;
+		this.markDirty(node.network);
+	}
+
+	/**
+	 * The power level of the given network, as of the last solve.
+	 */
+	public int powerLevel(int networkId) {
+		var network = this.graph.network(networkId);
+		return network == null ? 0 : network.powerLevel;
+	}
+
+	/**
+	 * Whether the supply of the given network covers its demand.
+	 */
+	public boolean isSatisfied(int networkId) {
+		var network = this.graph.network(networkId);
+		return network != null && network.powerSupply >= network.powerDemand;
+	}
+
+	@Override
+	public void onNetworkChanged(NetworkGraph.Network network) {
+		this.markDirty(network);
+	}
+
+	private void markDirty(NetworkGraph.Network network) {
+		if(!network.powerDirty) {
+			network.powerDirty = true;
+			this.dirty.add(network);
+		}
+	}
+
+	/**
+	 * Solves every network that changed this tick and writes the results to loaded nodes.
+	 */
+	@SuppressWarnings("deprecation")
+	public void tick(ServerWorld world) {
+		if(this.dirty.isEmpty()) {
+			return;
+		}
+		var parking = WorldNetworks.get(world).parking();
+		var pos = new BlockPos.Mutable();
+		for(var network : this.dirty) {
+			if(!solve(network)) {
+				continue;
+			}
+			// membership may have changed even if the level did not, so write to every node
+			for(var itr = network.nodes.iterator(); itr.hasNext(); ) {
+				pos.set(itr.nextLong());
+				if(!world.isChunkLoaded(ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getZ()))) {
+					continue;
+				}
+				var blockEntity = parking.getNode(world, pos);
+				if(blockEntity != null && blockEntity.componentData.setPowerLevel(network.powerLevel)) {
+					blockEntity.markChanged(NodeSync.POWER);
+				}
+			}
+		}
+		this.dirty.clear();
+	}
+
+	/**
+	 * Solves every network that changed without writing the results to block entities.
+	 *
+	 * @return The number of networks solved.
+	 */
+	int solveAll() {
+		int solved = 0;
+		for(var network : this.dirty) {
+			if(solve(network)) {
+				solved++;
+			}
+		}
+		this.dirty.clear();
+		return solved;
+	}
+
+	/**
+	 * Computes the power level of a network.
+	 *
+	 * @return Whether the network still exists.
+	 */
+	private static boolean solve(NetworkGraph.Network network) {
+		network.powerDirty = false;
+		if(network.removed) {
+			return false;
+		}
+		long surplus = network.powerSupply - network.powerDemand;
+		network.powerLevel = (int)Math.max(0, Math.min(surplus, NetworkComponentData.MAX_POWER));
+		return true;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.minecraft.util.math.Direction;
+
+/**
+ * Records the wires each discovery cursor has walked over, so that cursors walking the same segment from
+ * both ends meet in the middle instead of each walking all of it. A segment wire has two connections, so
+ * a cursor reaching a wire another cursor entered from the other side has found that cursor's node.
+ * <p>
+ * Claims are checked against the claiming node when read, and are all dropped once no discovery is in
+ * progress.
+ */
+public final class SegmentWalks {
+	/**
+	 * The walk that last passed each segment wire, keyed by position.
+	 */
+	private final Long2ObjectOpenHashMap<Claim> claims;
+
+	private int nextWalkId;
+
+	/**
+	 * Number of walks finished by meeting a walk from the other end.
+	 */
+	private long mergedCount;
+
+	SegmentWalks() {
+		this.claims = new Long2ObjectOpenHashMap<>();
+		this.nextWalkId = 1;
+	}
+
+	/**
+	 * Allocates an ID for a new walk. Zero is never allocated.
+	 */
+	public int newWalk() {
+		int id = this.nextWalkId++;
+		if(this.nextWalkId == 0) {
+			this.nextWalkId = 1;
+		}
+		return id;
+	}
+
+	/**
+	 * Claims a segment wire for a walk, unless a walk from the other end already passed it.
+	 *
+	 * @param pos      The position of the wire.
+	 * @param node     The node walking.
+	 * @param dir      The direction from the node being walked.
+	 * @param walkId   The ID of the walk.
+	 * @param fromDir  The direction the walk entered the wire from.
+	 * @param distance The wire distance from the node to this wire.
+	 * @return The claim of a walk from the other end, or null if the wire was claimed.
+	 */
+	@Nullable
+	public Claim claim(long pos, NetworkNodeBlockEntity node, Direction dir, int walkId, Direction fromDir, int distance) {
+		var existing = this.claims.get(pos);
+		if(existing != null && existing.fromDir != fromDir && existing.node != node &&
+			!existing.node.isRemoved() && existing.node.isWalking(existing.dir, existing.walkId)) {
+			this.mergedCount++;
+			return existing;
+		}
+		this.claims.put(pos, new Claim(node, dir, walkId, fromDir, distance));
+		return null;
+	}
+
+	/**
+	 * The number of claimed wires.
+	 */
+	public int claimCount() {
+		return this.claims.size();
+	}
+
+	public long mergedCount() {
+		return this.mergedCount;
+	}
+
+	void clear() {
+		if(!this.claims.isEmpty()) {
+			this.claims.clear();
+			this.claims.trim();
+		}
+	}
+
+	/**
+	 * A walk passing a segment wire.
+	 *
+	 * @param node     The node walking.
+	 * @param dir      The direction from the node being walked.
+	 * @param walkId   The ID of the walk.
+	 * @param fromDir  The direction the walk entered the wire from.
+	 * @param distance The wire distance from the node to the wire.
+	 */
+	public record Claim(NetworkNodeBlockEntity node, Direction dir, int walkId, Direction fromDir, int distance) {
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * Keeps the signal level of every node up to date as sources and connections change. Signal levels
+ * are shortest path distances to the nearest source, using connection distances as edge weights.
+ * <p>
+ * Decreases propagate outward from the changed connection using a bucketed queue, as distances are
+ * small integers. Increases first invalidate the affected part of the shortest path tree, then reseed
+ * it from its unaffected neighbors. Work is bounded per tick; leftover work carries over to the next
+ * tick. Each tick, the levels that can no longer change are written to block entities, so a network
+ * that never settles still shows its settled part.
+ * <p>
+ * Sources are nodes whose {@link systems.thedawn.bls.block.NetworkComponent#isSignalSource} is true,
+ * read whenever the node loads or is updated.
+ */
+public final class SignalPropagator implements NetworkGraph.Listener {
+	private static final int NO_SIGNAL = NetworkComponentData.NO_SIGNAL;
+
+	/**
+	 * Maximum number of nodes visited per tick.
+	 */
+	private static final int MAX_WORK_PER_TICK = 8192;
+
+	private final NetworkGraph graph;
+
+	/**
+	 * Nodes waiting to be settled, indexed by tentative signal level.
+	 */
+	private final ObjectArrayList<NetworkGraph.Node>[] buckets;
+
+	/**
+	 * The lowest bucket which may be non-empty.
+	 */
+	private int lowestBucket;
+
+	/**
+	 * Nodes whose shortest path was broken, along with everything downstream of them.
+	 */
+	private final ArrayDeque<NetworkGraph.Node> invalid;
+
+	/**
+	 * Invalidated nodes waiting to take a new path from their neighbors.
+	 */
+	private final ArrayList<NetworkGraph.Node> reseed;
+
+	/**
+	 * Nodes whose signal level changed since the last write.
+	 */
+	private final ArrayList<NetworkGraph.Node> changed;
+
+	@SuppressWarnings("unchecked")
+	SignalPropagator(NetworkGraph graph) {
+		this.graph = graph;
+		this.buckets = new ObjectArrayList[NO_SIGNAL];
+		for(int i = 0; i < NO_SIGNAL; i++) {
+			this.buckets[i] = new ObjectArrayList<>();
+		}
+		this.lowestBucket = NO_SIGNAL;
+		this.invalid = new ArrayDeque<>();
+		this.reseed = new ArrayList<>();
+		this.changed = new ArrayList<>();
+	}
+
+	/**
+	 * Sets whether the node at the given position is a signal source.
+	 */
+	public void setSource(long pos, boolean source) {
+		var node = this.graph.nodeAt(pos);
+		if(node.signalSource == source) {
+			return;
+		}
+		node.signalSource = source;
+		if(source) {
+			this.push(node, 0, null);
+		} else if(node.signal == 0) {
+			this.invalidate(node);
+		}
+	}
+
+	/**
+	 * The current signal level at the given position.
+	 */
+	public int signalLevel(long pos) {
+		var node = this.graph.node(pos);
+		return node == null ? NO_SIGNAL : node.signal;
+	}
+
+	/**
+	 * Whether there is no pending propagation work.
+	 */
+	public boolean isSettled() {
+		return this.invalid.isEmpty() && this.reseed.isEmpty() && this.lowestBucket >= NO_SIGNAL;
+	}
+
+	@Override
+	public void onConnected(NetworkGraph.Node a, NetworkGraph.Node b, int distance) {
+		this.checkConnection(a, b, distance);
+		this.checkConnection(b, a, distance);
+	}
+
+	private void checkConnection(NetworkGraph.Node from, NetworkGraph.Node to, int distance) {
+		if(from.signal >= NO_SIGNAL) {
+			return;
+		}
+		int level = from.signal + Math.min(distance, NO_SIGNAL);
+		if(to.signalParent == from && level > to.signal) {
+			// the connection got longer
+			this.invalidate(to);
+		} else {
+			this.push(to, level, from);
+		}
+	}
+
+	@Override
+	public void onDisconnected(NetworkGraph.Node a, NetworkGraph.Node b) {
+		if(b.signalParent == a) {
+			this.invalidate(b);
+		}
+		if(a.signalParent == b) {
+			this.invalidate(a);
+		}
+	}
+
+	/**
+	 * Propagates signal changes, up to the work limit.
+	 */
+	public void tick(ServerWorld world) {
+		this.writeChanges(world, this.propagate());
+	}
+
+	/**
+	 * Propagates signal changes without writing them to block entities, up to the work limit.
+	 *
+	 * @return Whether propagation settled.
+	 */
+	boolean propagate() {
+		int work = 0;
+		// mark everything downstream of broken paths
+		while(!this.invalid.isEmpty()) {
+			if(work++ >= MAX_WORK_PER_TICK) {
+				return false;
+			}
+			var node = this.invalid.poll();
+			this.setSignal(node, NO_SIGNAL, null);
+			this.reseed.add(node);
+			for(var neighbor : node.neighbors) {
+				if(neighbor != null && neighbor.signalParent == node) {
+					this.invalidate(neighbor);
+				}
+			}
+		}
+		// take the best remaining path through neighbors
+		while(!this.reseed.isEmpty()) {
+			if(work++ >= MAX_WORK_PER_TICK) {
+				return false;
+			}
+			var node = this.reseed.remove(this.reseed.size() - 1);
+			node.signalInvalid = false;
+			if(node.removed) {
+				continue;
+			}
+			if(node.signalSource) {
+				this.push(node, 0, null);
+				continue;
+			}
+			for(int i = 0; i < 6; i++) {
+				var neighbor = node.neighbors[i];
+				if(neighbor != null && neighbor.signal < NO_SIGNAL) {
+					this.push(node, neighbor.signal + Math.min(node.distances[i], NO_SIGNAL), neighbor);
+				}
+			}
+		}
+		// settle nodes in order of signal level
+		while(this.lowestBucket < NO_SIGNAL) {
+			var bucket = this.buckets[this.lowestBucket];
+			if(bucket.isEmpty()) {
+				this.lowestBucket++;
+				continue;
+			}
+			if(work++ >= MAX_WORK_PER_TICK) {
+				return false;
+			}
+			var node = bucket.remove(bucket.size() - 1);
+			if(node.removed || node.signal != this.lowestBucket) {
+				// stale entry
+				continue;
+			}
+			for(int i = 0; i < 6; i++) {
+				var neighbor = node.neighbors[i];
+				if(neighbor != null) {
+					this.push(neighbor, node.signal + Math.min(node.distances[i], NO_SIGNAL), node);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lowers the signal level of a node if the given level is better.
+	 */
+	private void push(NetworkGraph.Node node, int level, @Nullable NetworkGraph.Node parent) {
+		if(level >= NO_SIGNAL || level >= node.signal || node.removed) {
+			return;
+		}
+		this.setSignal(node, level, parent);
+		this.buckets[level].add(node);
+		this.lowestBucket = Math.min(this.lowestBucket, level);
+	}
+
+	private void invalidate(NetworkGraph.Node node) {
+		if(!node.signalInvalid && !node.removed) {
+			node.signalInvalid = true;
+			this.invalid.add(node);
+		}
+	}
+
+	private void setSignal(NetworkGraph.Node node, int level, @Nullable NetworkGraph.Node parent) {
+		node.signalParent = parent;
+		if(node.signal != level) {
+			node.signal = level;
+			if(!node.signalChanged) {
+				node.signalChanged = true;
+				this.changed.add(node);
+			}
+		}
+	}
+
+	/**
+	 * Whether a node's level is final, even though propagation has not settled. Once every broken path
+	 * has been reseeded, nodes below the lowest waiting level can't be lowered again.
+	 */
+	private boolean isSettled(NetworkGraph.Node node) {
+		return this.invalid.isEmpty() && this.reseed.isEmpty() && node.signal < this.lowestBucket;
+	}
+
+	/**
+	 * Writes settled signal levels to loaded nodes and keeps the rest for a later tick. Unloaded nodes
+	 * pick up their level when they load.
+	 *
+	 * @param settled Whether propagation settled, so that every level is final.
+	 */
+	@SuppressWarnings("deprecation")
+	private void writeChanges(ServerWorld world, boolean settled) {
+		var parking = WorldNetworks.get(world).parking();
+		var pos = new BlockPos.Mutable();
+		int kept = 0;
+		for(int i = 0; i < this.changed.size(); i++) {
+			var node = this.changed.get(i);
+			if(node.removed) {
+				node.signalChanged = false;
+				continue;
+			}
+			if(!settled && !this.isSettled(node)) {
+				this.changed.set(kept++, node);
+				continue;
+			}
+			node.signalChanged = false;
+			pos.set(node.pos);
+			if(!world.isChunkLoaded(ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getZ()))) {
+				continue;
+			}
+			var blockEntity = parking.getNode(world, pos);
+			if(blockEntity != null && blockEntity.componentData.setSignalLevel(node.signal)) {
+				blockEntity.markChanged(NodeSync.SIGNAL);
+			}
+		}
+		this.changed.subList(kept, this.changed.size()).clear();
+	}
+
+	/**
+	 * Discards the record of changed nodes without writing it anywhere.
+	 *
+	 * @return The number of nodes whose signal level changed.
+	 */
+	int discardChanges() {
+		int count = this.changed.size();
+		for(var node : this.changed) {
+			node.signalChanged = false;
+		}
+		this.changed.clear();
+		return count;
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.minecraft.block.entity.BlockEntityType;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Util;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.dimension.DimensionType;
+
+/**
+ * Writes the node data of a dimension or region to a topology file, chunk by chunk over several ticks.
+ * Loaded chunks are read from their block entities and other chunks from storage, without loading them.
+ * Stored chunks are read on the IO worker threads, at most {@link #MAX_READS} at a time, and written out
+ * on the server thread as the reads complete. The file is written under a temporary name and moved into
+ * place once complete; see {@link TopologyReader} for the format.
+ * <p>
+ * Each chunk is a consistent snapshot, but chunks exported at different ticks may disagree where the
+ * network changed in between. Chunks that were never saved, or were saved by an older version of the
+ * game, are not exported unless loaded.
+ */
+public final class TopologyExport {
+	/**
+	 * Time per tick spent exporting.
+	 */
+	private static final long SLICE_NANOS = 2_000_000L;
+
+	/**
+	 * The most stored chunks being read at once.
+	 */
+	private static final int MAX_READS = 16;
+
+	private static final String BLOCK_ENTITIES = "block_entities";
+
+	/**
+	 * Chunk areas left to export, as {@code {minX, minZ, maxX, maxZ}} inclusive.
+	 */
+	private final ArrayDeque<int[]> areas;
+	private final Path path;
+	private final Path partialPath;
+	private final DataOutputStream out;
+	private final Consumer<String> report;
+	private final String typeId;
+
+	private int[] area;
+	private int chunkX;
+	private int chunkZ;
+
+	/**
+	 * Reads of stored chunks, in the order they were started.
+	 */
+	private final ArrayDeque<StoredChunk> reads;
+
+	private final ArrayList<BlockPos> positions;
+	private final ArrayList<NetworkComponentData> nodes;
+
+	private long chunkCount;
+	private long nodeCount;
+
+	private TopologyExport(ServerWorld world, ArrayDeque<int[]> areas, Path path, Consumer<String> report) throws IOException {
+		this.areas = areas;
+		this.path = path;
+		this.partialPath = path.resolveSibling(path.getFileName() + ".part");
+		this.report = report;
+		this.typeId = String.valueOf(BlockEntityType.getId(NetworkNodeBlockEntity.TYPE));
+		this.reads = new ArrayDeque<>();
+		this.positions = new ArrayList<>();
+		this.nodes = new ArrayList<>();
+		Files.createDirectories(path.getParent());
+		this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(this.partialPath))));
+		this.out.writeInt(TopologyReader.MAGIC);
+		this.out.writeInt(TopologyReader.FORMAT_VERSION);
+		this.out.writeUTF(world.getRegistryKey().getValue().toString());
+	}
+
+	/**
+	 * Starts an export of the chunks between two chunk positions, inclusive.
+	 *
+	 * @param report Receives a message when the export finishes or fails.
+	 */
+	public static TopologyExport ofRegion(ServerWorld world, ChunkPos from, ChunkPos to, Path path, Consumer<String> report) throws IOException {
+		var areas = new ArrayDeque<int[]>();
+		areas.add(new int[] { Math.min(from.x, to.x), Math.min(from.z, to.z), Math.max(from.x, to.x), Math.max(from.z, to.z) });
+		return new TopologyExport(world, areas, path, report);
+	}
+
+	/**
+	 * Starts an export of every saved chunk in a dimension, found from its region files.
+	 *
+	 * @param report Receives a message when the export finishes or fails.
+	 */
+	public static TopologyExport ofDimension(ServerWorld world, Path path, Consumer<String> report) throws IOException {
+		var areas = new ArrayDeque<int[]>();
+		var root = world.getServer().getSavePath(WorldSavePath.ROOT);
+		var regionDir = DimensionType.getSaveDirectory(world.getRegistryKey(), root).resolve("region");
+		if(Files.isDirectory(regionDir)) {
+			try(var files = Files.list(regionDir)) {
+				for(var file : (Iterable<Path>)files::iterator) {
+					// region files are named r.<x>.<z>.mca and hold 32x32 chunks
+					var parts = file.getFileName().toString().split("\\.");
+					if(parts.length == 4 && parts[0].equals("r") && parts[3].equals("mca")) {
+						try {
+							int x = Integer.parseInt(parts[1]) << 5;
+							int z = Integer.parseInt(parts[2]) << 5;
+							areas.add(new int[] { x, z, x + 31, z + 31 });
+						} catch(NumberFormatException e) {
+							// not a region file
+						}
+					}
+				}
+			}
+		}
+		return new TopologyExport(world, areas, path, report);
+	}
+
+	/**
+	 * The file being written.
+	 */
+	public Path path() {
+		return this.path;
+	}
+
+	public long chunkCount() {
+		return this.chunkCount;
+	}
+
+	public long nodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * Exports chunks for up to the time slice, or until it has to wait for stored chunks to be read.
+	 *
+	 * @return Whether the export is finished.
+	 */
+	boolean tick(ServerWorld world) {
+		long deadline = System.nanoTime() + SLICE_NANOS;
+		try {
+			do {
+				while(!this.reads.isEmpty() && this.reads.peek().nbt.isDone()) {
+					var read = this.reads.poll();
+					this.exportStoredChunk(read.x, read.z, read.nbt);
+				}
+				if(this.reads.size() >= MAX_READS) {
+					break;
+				}
+				if(!this.advance()) {
+					if(this.reads.isEmpty()) {
+						this.finish();
+						return true;
+					}
+					break;
+				}
+				this.exportChunk(world, this.chunkX, this.chunkZ);
+			} while(System.nanoTime() < deadline);
+		} catch(IOException e) {
+			this.abort("Export to " + this.path.getFileName() + " failed: " + e.getMessage());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the export and deletes the partial file.
+	 */
+	void abort(String message) {
+		for(var read : this.reads) {
+			read.nbt.cancel(false);
+		}
+		this.reads.clear();
+		try {
+			this.out.close();
+			Files.deleteIfExists(this.partialPath);
+		} catch(IOException e) {
+			// the partial file is not useful either way
+		}
+		this.report.accept(message);
+	}
+
+	/**
+	 * Moves to the next chunk.
+	 *
+	 * @return Whether there was a next chunk.
+	 */
+	private boolean advance() {
+		if(this.area != null && ++this.chunkX > this.area[2]) {
+			this.chunkX = this.area[0];
+			if(++this.chunkZ > this.area[3]) {
+				this.area = null;
+			}
+		}
+		if(this.area == null) {
+			this.area = this.areas.poll();
+			if(this.area == null) {
+				return false;
+			}
+			this.chunkX = this.area[0];
+			this.chunkZ = this.area[1];
+		}
+		return true;
+	}
+
+	/**
+	 * Exports a loaded chunk, or starts reading it from storage.
+	 */
+	private void exportChunk(ServerWorld world, int x, int z) throws IOException {
+		var chunkManager = world.getChunkManager();
+		if(!chunkManager.isChunkLoaded(x, z)) {
+			var storage = chunkManager.threadedAnvilChunkStorage;
+			var pos = new ChunkPos(x, z);
+			this.reads.add(new StoredChunk(x, z, CompletableFuture.supplyAsync(() -> {
+				try {
+					return storage.getNbt(pos);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, Util.getIoWorkerExecutor())));
+			return;
+		}
+		var chunk = chunkManager.getWorldChunk(x, z);
+		if(chunk != null) {
+			for(var blockEntity : chunk.getBlockEntities().values()) {
+				if(blockEntity instanceof NetworkNodeBlockEntity node) {
+					this.positions.add(node.getPos());
+					this.nodes.add(node.componentData);
+				}
+			}
+		}
+		this.writeChunk(x, z);
+	}
+
+	private void exportStoredChunk(int x, int z, CompletableFuture<NbtCompound> read) throws IOException {
+		NbtCompound nbt;
+		try {
+			nbt = read.join();
+		} catch(CompletionException e) {
+			throw e.getCause() instanceof UncheckedIOException io ? io.getCause() : new IOException(e.getCause());
+		}
+		if(nbt != null) {
+			this.readStoredNodes(nbt);
+		}
+		this.writeChunk(x, z);
+	}
+
+	private void writeChunk(int x, int z) throws IOException {
+		if(!this.nodes.isEmpty()) {
+			this.out.writeByte(TopologyReader.CHUNK_MARKER);
+			this.out.writeInt(x);
+			this.out.writeInt(z);
+			writeVarInt(this.out, this.nodes.size());
+			for(int i = 0; i < this.nodes.size(); i++) {
+				this.writeNode(this.positions.get(i), this.nodes.get(i));
+			}
+			this.nodeCount += this.nodes.size();
+			this.positions.clear();
+			this.nodes.clear();
+		}
+		this.chunkCount++;
+	}
+
+	private void readStoredNodes(NbtCompound chunkNbt) {
+		for(var element : chunkNbt.getList(BLOCK_ENTITIES, NbtElement.COMPOUND_TYPE)) {
+			var nbt = (NbtCompound)element;
+			if(this.typeId.equals(nbt.getString("id"))) {
+				var pos = new BlockPos(nbt.getInt("x"), nbt.getInt("y"), nbt.getInt("z"));
+				var data = new NetworkComponentData();
+				data.readNbt(nbt, pos);
+				this.positions.add(pos);
+				this.nodes.add(data);
+			}
+		}
+	}
+
+	private void writeNode(BlockPos pos, NetworkComponentData data) throws IOException {
+		this.out.writeByte((pos.getX() & 15) << 4 | pos.getZ() & 15);
+		writeVarInt(this.out, pos.getY());
+		this.out.writeByte(data.powerLevel());
+		this.out.writeByte(data.signalLevel());
+		this.out.writeByte(data.connectionMask());
+		for(int dirs = data.connectionMask(); dirs != 0; dirs &= dirs - 1) {
+			var dir = Direction.byId(Integer.numberOfTrailingZeros(dirs));
+			long other = data.connectionPos(dir);
+			writeVarInt(this.out, zigzag(BlockPos.unpackLongX(other) - pos.getX()));
+			writeVarInt(this.out, zigzag(BlockPos.unpackLongY(other) - pos.getY()));
+			writeVarInt(this.out, zigzag(BlockPos.unpackLongZ(other) - pos.getZ()));
+			this.out.writeByte(data.connectionDir(dir).getId() | data.connectionFace(dir).getId() << 3);
+			writeVarInt(this.out, data.connectionDistance(dir));
+		}
+	}
+
+	private void finish() throws IOException {
+		this.out.writeByte(TopologyReader.END_MARKER);
+		this.out.writeLong(this.nodeCount);
+		this.out.close();
+		Files.move(this.partialPath, this.path, StandardCopyOption.REPLACE_EXISTING);
+		this.report.accept(String.format("Exported %d nodes from %d chunks to %s", this.nodeCount, this.chunkCount, this.path.getFileName()));
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while((value & ~0x7f) != 0) {
+			out.writeByte(value & 0x7f | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int zigzag(int value) {
+		return value << 1 ^ value >> 31;
+	}
+
+	/**
+	 * A stored chunk being read.
+	 */
+	private record StoredChunk(int x, int z, CompletableFuture<NbtCompound> nbt) {
+	}
+}
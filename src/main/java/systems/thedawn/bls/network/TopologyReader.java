@@ -0,0 +1,238 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads network topology files written by {@link TopologyExport}, one node at a time. Depends only on
+ * the JDK, so it can be used by offline tools without the game on the class path.
+ * <p>
+ * File layout, gzip compressed: magic (int), format version (int), dimension (UTF), then chunk
+ * records. A chunk record is a marker byte of 1, chunk x and z (int), node count (varint) and the
+ * nodes. A node is its local x and z (byte), y (varint), power and signal level (byte), and a
+ * direction mask of connections (byte) followed by, for each direction in it, the zigzag-encoded
+ * offset to the other node (3 varints), its direction and face (byte), and the distance (varint).
+ * The chunk records end with a marker byte of 0 and the total node count (long).
+ */
+public final class TopologyReader implements Closeable {
+	public static final int MAGIC = 0x424c5354;
+	public static final int FORMAT_VERSION = 1;
+
+	static final int CHUNK_MARKER = 1;
+	static final int END_MARKER = 0;
+
+	private final DataInputStream in;
+	private final String dimension;
+
+	private int chunkX;
+	private int chunkZ;
+	private int remainingInChunk;
+	private boolean ended;
+	private long nodeCount;
+
+	private int x;
+	private int y;
+	private int z;
+	private int powerLevel;
+	private int signalLevel;
+	private int connectionMask;
+	private final int[] connectionX;
+	private final int[] connectionY;
+	private final int[] connectionZ;
+	private final byte[] connectionDirs;
+	private final int[] connectionDistances;
+
+	public TopologyReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+		if(this.in.readInt() != MAGIC) {
+			throw new IOException("Not a network topology file");
+		}
+		int version = this.in.readInt();
+		if(version != FORMAT_VERSION) {
+			throw new IOException("Unsupported topology format " + version);
+		}
+		this.dimension = this.in.readUTF();
+		this.connectionX = new int[6];
+		this.connectionY = new int[6];
+		this.connectionZ = new int[6];
+		this.connectionDirs = new byte[6];
+		this.connectionDistances = new int[6];
+	}
+
+	public static TopologyReader open(Path path) throws IOException {
+		return new TopologyReader(Files.newInputStream(path));
+	}
+
+	/**
+	 * The ID of the dimension the file was exported from.
+	 */
+	public String dimension() {
+		return this.dimension;
+	}
+
+	/**
+	 * Advances to the next node. The accessors describe that node until the next call.
+	 *
+	 * @return Whether there was another node.
+	 */
+	public boolean next() throws IOException {
+		while(this.remainingInChunk == 0) {
+			if(this.ended) {
+				return false;
+			}
+			int marker = this.in.readUnsignedByte();
+			if(marker == END_MARKER) {
+				long expected = this.in.readLong();
+				if(expected != this.nodeCount) {
+					throw new IOException("Expected " + expected + " nodes, read " + this.nodeCount);
+				}
+				this.ended = true;
+				return false;
+			}
+			if(marker != CHUNK_MARKER) {
+				throw new IOException("Unknown record " + marker);
+			}
+			this.chunkX = this.in.readInt();
+			this.chunkZ = this.in.readInt();
+			this.remainingInChunk = readVarInt(this.in);
+		}
+		this.remainingInChunk--;
+		this.nodeCount++;
+		int xz = this.in.readUnsignedByte();
+		this.x = (this.chunkX << 4) + (xz >> 4);
+		this.y = readVarInt(this.in);
+		this.z = (this.chunkZ << 4) + (xz & 15);
+		this.powerLevel = this.in.readUnsignedByte();
+		this.signalLevel = this.in.readUnsignedByte();
+		this.connectionMask = this.in.readUnsignedByte() & 0x3f;
+		for(int dirs = this.connectionMask; dirs != 0; dirs &= dirs - 1) {
+			int dir = Integer.numberOfTrailingZeros(dirs);
+			this.connectionX[dir] = this.x + unzigzag(readVarInt(this.in));
+			this.connectionY[dir] = this.y + unzigzag(readVarInt(this.in));
+			this.connectionZ[dir] = this.z + unzigzag(readVarInt(this.in));
+			this.connectionDirs[dir] = this.in.readByte();
+			this.connectionDistances[dir] = readVarInt(this.in);
+		}
+		return true;
+	}
+
+	public int x() {
+		return this.x;
+	}
+
+	public int y() {
+		return this.y;
+	}
+
+	public int z() {
+		return this.z;
+	}
+
+	public int powerLevel() {
+		return this.powerLevel;
+	}
+
+	public int signalLevel() {
+		return this.signalLevel;
+	}
+
+	/**
+	 * The directions which have a connection, as bits indexed by direction ID.
+	 */
+	public int connectionMask() {
+		return this.connectionMask;
+	}
+
+	public int connectionX(int dir) {
+		return this.connectionX[dir];
+	}
+
+	public int connectionY(int dir) {
+		return this.connectionY[dir];
+	}
+
+	public int connectionZ(int dir) {
+		return this.connectionZ[dir];
+	}
+
+	/**
+	 * The ID of the direction from which the node in the given direction connects back.
+	 */
+	public int connectionDir(int dir) {
+		return this.connectionDirs[dir] & 7;
+	}
+
+	/**
+	 * The ID of the face the node in the given direction is on.
+	 */
+	public int connectionFace(int dir) {
+		return this.connectionDirs[dir] >> 3 & 7;
+	}
+
+	public int connectionDistance(int dir) {
+		return this.connectionDistances[dir];
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("VarInt too long");
+	}
+
+	static int unzigzag(int value) {
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	/**
+	 * Prints a summary of a topology file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.err.println("Usage: TopologyReader <file>");
+			System.exit(1);
+		}
+		long nodes = 0;
+		long connections = 0;
+		long totalDistance = 0;
+		long powered = 0;
+		try(var reader = open(Path.of(args[0]))) {
+			while(reader.next()) {
+				nodes++;
+				if(reader.powerLevel() > 0) {
+					powered++;
+				}
+				for(int dirs = reader.connectionMask(); dirs != 0; dirs &= dirs - 1) {
+					connections++;
+					totalDistance += reader.connectionDistance(Integer.numberOfTrailingZeros(dirs));
+				}
+			}
+			// each connection is stored at both of its nodes
+			System.out.printf("%s: %d nodes, %d powered, %d connections, %d blocks of wire%n",
+				reader.dimension(), nodes, powered, connections / 2, totalDistance / 2);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import net.minecraft.util.math.Direction;
+
+/**
+ * A maximal chain of wires with exactly two connections each. A segment is bounded at each end either
+ * by a node or by nothing at all.
+ */
+public final class WireSegment {
+	/**
+	 * Marker for a segment end that does not lead to a node.
+	 */
+	public static final long NO_NODE = Long.MAX_VALUE;
+
+	/**
+	 * Positions of the wires in this segment, in order from end 0 to end 1.
+	 */
+	final LongArrayList wires;
+
+	/**
+	 * Positions of the nodes at each end, or {@link #NO_NODE}.
+	 */
+	final long[] endNodes;
+
+	/**
+	 * The (absolute) direction leading out of the segment from the wire at each end.
+	 */
+	final Direction[] endDirs;
+
+	/**
+	 * The face all wires in this segment are on.
+	 */
+	final Direction face;
+
+	WireSegment(Direction face) {
+		this.wires = new LongArrayList();
+		this.endNodes = new long[] { NO_NODE, NO_NODE };
+		this.endDirs = new Direction[2];
+		this.face = face;
+	}
+
+	/**
+	 * The number of wires in this segment.
+	 */
+	public int wireCount() {
+		return this.wires.size();
+	}
+
+	/**
+	 * The connection distance between the nodes at either end of this segment.
+	 */
+	public int length() {
+		return this.wires.size() + 1;
+	}
+
+	public Direction face() {
+		return this.face;
+	}
+
+	public long endNode(int end) {
+		return this.endNodes[end];
+	}
+
+	public Direction endDir(int end) {
+		return this.endDirs[end];
+	}
+
+	/**
+	 * The position of the wire at the given end.
+	 */
+	long endWire(int end) {
+		return end == 0 ? this.wires.getLong(0) : this.wires.getLong(this.wires.size() - 1);
+	}
+
+	/**
+	 * Finds the end whose wire is at the given position and leads out in the given direction.
+	 *
+	 * @return The end, or -1 if there is no such end.
+	 */
+	int endAt(long wire, Direction outward) {
+		for(int end = 0; end < 2; end++) {
+			if(this.endDirs[end] == outward && this.endWire(end) == wire) {
+				return end;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.WireBlockBase;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Index of the wire segments between nodes in a world. Segments are built lazily the first time they
+ * are needed and afterwards kept up to date as wires change, splitting and merging as necessary.
+ * Segments with wires in a chunk are dropped when the chunk unloads, and built again when next needed.
+ */
+public final class WireSegmentIndex {
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/**
+	 * Segments keyed by the positions of each of their wires.
+	 */
+	private final Long2ObjectOpenHashMap<WireSegment> segmentsByWire;
+
+	/**
+	 * Positions of the indexed wires in each chunk, keyed by chunk position.
+	 */
+	private final Long2ObjectOpenHashMap<LongOpenHashSet> wiresByChunk;
+
+	WireSegmentIndex() {
+		this.segmentsByWire = new Long2ObjectOpenHashMap<>();
+		this.wiresByChunk = new Long2ObjectOpenHashMap<>();
+	}
+
+	/**
+	 * Resolves the connection leaving a node in the given direction.
+	 *
+	 * @param pos   The position of the node.
+	 * @param state The state of the node.
+	 * @param dir   The direction from the node.
+	 */
+	public Resolution resolve(WireView view, BlockPos pos, BlockState state, Direction dir) {
+		var adjacentPos = pos.offset(dir);
+		if(!view.isLoaded(adjacentPos)) {
+			return Resolution.UNRESOLVED;
+		}
+		var adjacentState = view.getBlockState(adjacentPos);
+		if(!connectsBack(state, adjacentState, dir)) {
+			return Resolution.DISCONNECTED;
+		}
+		if(WireBlockBase.shouldHaveBlockEntity(adjacentState)) {
+			// directly adjacent node
+			var face = NetworkComponents.face(adjacentState);
+			return Resolution.connected(new NetworkComponentData.Connection(dir.getOpposite(), adjacentPos, face, 1));
+		}
+		var segment = this.segmentAt(view, adjacentPos, adjacentState);
+		if(segment == null) {
+			return Resolution.UNRESOLVED;
+		}
+		int end = segment.endAt(adjacentPos.asLong(), dir.getOpposite());
+		if(end < 0 || segment.endNodes[end] != pos.asLong()) {
+			// the index is out of sync with the world, so start over
+			this.invalidate(segment);
+			segment = this.segmentAt(view, adjacentPos, adjacentState);
+			end = segment == null ? -1 : segment.endAt(adjacentPos.asLong(), dir.getOpposite());
+			if(end < 0) {
+				return Resolution.UNRESOLVED;
+			}
+		}
+		int far = 1 - end;
+		if(segment.endNodes[far] == WireSegment.NO_NODE) {
+			return Resolution.DISCONNECTED;
+		}
+		var connection = new NetworkComponentData.Connection(
+			segment.endDirs[far].getOpposite(),
+			BlockPos.fromLong(segment.endNodes[far]),
+			segment.face,
+			segment.length());
+		return Resolution.connected(connection);
+	}
+
+	/**
+	 * Gets the segment containing the given wire, building it if it is not yet indexed.
+	 *
+	 * @return The segment, or null if the wire is not part of a segment or the segment cannot be
+	 * built without loading chunks.
+	 */
+	@Nullable
+	public WireSegment segmentAt(WireView view, BlockPos pos, BlockState state) {
+		var segment = this.segmentsByWire.get(pos.asLong());
+		if(segment == null && WireBlockBase.isSegmentWire(state)) {
+			segment = this.build(view, pos, state);
+		}
+		return segment;
+	}
+
+	/**
+	 * Drops the segments with wires in the given chunk, which can't be kept up to date while it is
+	 * unloaded.
+	 */
+	public void onChunkUnloaded(ChunkPos chunk) {
+		var wires = this.wiresByChunk.remove(chunk.toLong());
+		if(wires == null) {
+			return;
+		}
+		for(var itr = wires.iterator(); itr.hasNext(); ) {
+			var segment = this.segmentsByWire.get(itr.nextLong());
+			if(segment != null) {
+				this.invalidate(segment);
+			}
+		}
+	}
+
+	/**
+	 * Updates the index after the block state at the given position changes.
+	 */
+	public void onStateChanged(WireView view, BlockPos pos, BlockState state) {
+		long key = pos.asLong();
+		var existing = this.segmentsByWire.get(key);
+		if(existing != null) {
+			this.split(existing, key);
+		}
+		// fix up segment ends leading into this position
+		for(var dir : DIRECTIONS) {
+			long adjacentKey = BlockPos.offset(key, dir);
+			var adjacent = this.segmentsByWire.get(adjacentKey);
+			if(adjacent == null) {
+				continue;
+			}
+			int end = adjacent.endAt(adjacentKey, dir.getOpposite());
+			if(end >= 0) {
+				boolean node = WireBlockBase.shouldHaveBlockEntity(state) && connectsBack(adjacent.face, state, dir);
+				adjacent.endNodes[end] = node ? key : WireSegment.NO_NODE;
+			}
+		}
+		if(WireBlockBase.isSegmentWire(state)) {
+			this.join(view, pos, state);
+		}
+	}
+
+	/**
+	 * Indexes a new segment wire, merging it with the segments on either side.
+	 */
+	private void join(WireView view, BlockPos pos, BlockState state) {
+		long key = pos.asLong();
+		var segment = new WireSegment(NetworkComponents.face(state));
+		segment.wires.add(key);
+		int dirs = WireBlockBase.connectionMask(state);
+		segment.endDirs[0] = lowestDir(dirs);
+		segment.endDirs[1] = highestDir(dirs);
+		this.put(key, segment);
+
+		var neighbors = new WireSegment[2];
+		var neighborEnds = new int[2];
+		for(int end = 0; end < 2; end++) {
+			var dir = segment.endDirs[end];
+			long adjacentKey = BlockPos.offset(key, dir);
+			var adjacent = this.segmentsByWire.get(adjacentKey);
+			if(adjacent != null) {
+				neighborEnds[end] = adjacent.endAt(adjacentKey, dir.getOpposite());
+				if(neighborEnds[end] < 0) {
+					// the adjacent wire leads elsewhere, give up on both
+					this.invalidate(adjacent);
+					this.invalidate(segment);
+					return;
+				}
+				neighbors[end] = adjacent;
+				continue;
+			}
+			var adjacentPos = BlockPos.fromLong(adjacentKey);
+			if(!view.isLoaded(adjacentPos)) {
+				this.invalidate(segment);
+				return;
+			}
+			var adjacentState = view.getBlockState(adjacentPos);
+			if(connectsBack(state, adjacentState, dir)) {
+				if(WireBlockBase.isSegmentWire(adjacentState)) {
+					// not indexed yet, leave this wire for the next lazy build
+					this.invalidate(segment);
+					return;
+				}
+				segment.endNodes[end] = adjacentKey;
+			}
+		}
+		if(neighbors[0] != null && neighbors[0] == neighbors[1]) {
+			// closed a loop without any nodes, which is never needed for discovery
+			this.invalidate(neighbors[0]);
+			this.invalidate(segment);
+			return;
+		}
+		var secondDir = segment.endDirs[1];
+		if(neighbors[0] != null) {
+			segment = this.merge(segment, 0, neighbors[0], neighborEnds[0]);
+		}
+		if(neighbors[1] != null) {
+			this.merge(segment, segment.endAt(key, secondDir), neighbors[1], neighborEnds[1]);
+		}
+	}
+
+	/**
+	 * Joins two segments at the given ends. The smaller segment is absorbed into the larger.
+	 *
+	 * @return The merged segment.
+	 */
+	private WireSegment merge(WireSegment a, int aEnd, WireSegment b, int bEnd) {
+		var large = a.wireCount() >= b.wireCount() ? a : b;
+		var small = large == a ? b : a;
+		int largeEnd = large == a ? aEnd : bEnd;
+		int smallEnd = large == a ? bEnd : aEnd;
+
+		// order the small segment so that the joined end is adjacent to the large segment
+		var smallWires = small.wires.toLongArray();
+		if((largeEnd == 1) == (smallEnd == 1)) {
+			reverse(smallWires);
+		}
+		if(largeEnd == 1) {
+			large.wires.addElements(large.wires.size(), smallWires);
+		} else {
+			large.wires.addElements(0, smallWires);
+		}
+		large.endNodes[largeEnd] = small.endNodes[1 - smallEnd];
+		large.endDirs[largeEnd] = small.endDirs[1 - smallEnd];
+		for(long wire : smallWires) {
+			this.put(wire, large);
+		}
+		return large;
+	}
+
+	/**
+	 * Removes a wire from a segment, splitting it in two. The new inner ends lead to the removed wire
+	 * and do not have a node.
+	 */
+	private void split(WireSegment segment, long key) {
+		var wires = segment.wires;
+		int index = wires.indexOf(key);
+		int size = wires.size();
+		this.remove(key, segment);
+		if(index < size - 1 - index) {
+			// head is the smaller half
+			if(index > 0) {
+				var head = new WireSegment(segment.face);
+				head.wires.addElements(0, wires.elements(), 0, index);
+				head.endNodes[0] = segment.endNodes[0];
+				head.endDirs[0] = segment.endDirs[0];
+				head.endDirs[1] = directionBetween(wires.getLong(index - 1), key);
+				this.reassign(head);
+			}
+			wires.removeElements(0, index + 1);
+			segment.endNodes[0] = WireSegment.NO_NODE;
+			segment.endDirs[0] = directionBetween(wires.getLong(0), key);
+		} else {
+			// tail is the smaller half
+			if(index < size - 1) {
+				var tail = new WireSegment(segment.face);
+				tail.wires.addElements(0, wires.elements(), index + 1, size - index - 1);
+				tail.endDirs[0] = directionBetween(wires.getLong(index + 1), key);
+				tail.endNodes[1] = segment.endNodes[1];
+				tail.endDirs[1] = segment.endDirs[1];
+				this.reassign(tail);
+			}
+			wires.removeElements(index, size);
+			if(wires.isEmpty()) {
+				return;
+			}
+			segment.endNodes[1] = WireSegment.NO_NODE;
+			segment.endDirs[1] = directionBetween(wires.getLong(wires.size() - 1), key);
+		}
+	}
+
+	/**
+	 * Walks the wires connected to the given wire and indexes the resulting segment.
+	 */
+	@Nullable
+	private WireSegment build(WireView view, BlockPos start, BlockState startState) {
+		var segment = new WireSegment(NetworkComponents.face(startState));
+		int dirs = WireBlockBase.connectionMask(startState);
+		var head = new LongArrayList();
+		var tail = new LongArrayList();
+		if(!this.walk(view, start, startState, lowestDir(dirs), segment, 0, head) ||
+			!this.walk(view, start, startState, highestDir(dirs), segment, 1, tail)) {
+			return null;
+		}
+		for(int i = head.size() - 1; i >= 0; i--) {
+			segment.wires.add(head.getLong(i));
+		}
+		segment.wires.add(start.asLong());
+		segment.wires.addAll(tail);
+		this.reassign(segment);
+		return segment;
+	}
+
+	/**
+	 * Follows wires from the given starting wire until the end of the segment.
+	 *
+	 * @param end The end of the segment being walked towards.
+	 * @param out The wires visited, not including the starting wire.
+	 * @return Whether the end was found.
+	 */
+	private boolean walk(WireView view, BlockPos start, BlockState startState, Direction dir, WireSegment segment, int end, LongArrayList out) {
+		var pos = start.mutableCopy();
+		var state = startState;
+		while(true) {
+			pos.move(dir);
+			if(!view.isLoaded(pos)) {
+				return false;
+			}
+			var next = view.getBlockState(pos);
+			if(!connectsBack(state, next, dir) || !WireBlockBase.isSegmentWire(next)) {
+				segment.endDirs[end] = dir;
+				segment.endNodes[end] = connectsBack(state, next, dir) ? pos.asLong() : WireSegment.NO_NODE;
+				return true;
+			}
+			if(pos.equals(start)) {
+				// wires form a loop with no nodes
+				return false;
+			}
+			out.add(pos.asLong());
+			dir = lowestDir(WireBlockBase.connectionMask(next) & ~(1 << dir.getOpposite().getId()));
+			state = next;
+		}
+	}
+
+	private void reassign(WireSegment segment) {
+		for(int i = 0; i < segment.wires.size(); i++) {
+			this.put(segment.wires.getLong(i), segment);
+		}
+	}
+
+	/**
+	 * Removes a segment from the index. It will be rebuilt when next needed.
+	 */
+	private void invalidate(WireSegment segment) {
+		for(int i = 0; i < segment.wires.size(); i++) {
+			this.remove(segment.wires.getLong(i), segment);
+		}
+	}
+
+	private void put(long wire, WireSegment segment) {
+		if(this.segmentsByWire.put(wire, segment) == null) {
+			this.wiresByChunk.computeIfAbsent(chunkKey(wire), k -> new LongOpenHashSet()).add(wire);
+		}
+	}
+
+	private void remove(long wire, WireSegment segment) {
+		if(this.segmentsByWire.remove(wire, segment)) {
+			long chunk = chunkKey(wire);
+			var wires = this.wiresByChunk.get(chunk);
+			if(wires != null && wires.remove(wire) && wires.isEmpty()) {
+				this.wiresByChunk.remove(chunk);
+			}
+		}
+	}
+
+	private static long chunkKey(long pos) {
+		return ChunkPos.toLong(ChunkSectionPos.getSectionCoord(BlockPos.unpackLongX(pos)), ChunkSectionPos.getSectionCoord(BlockPos.unpackLongZ(pos)));
+	}
+
+	/**
+	 * Whether the other state is connected back to a wire in the given direction.
+	 */
+	private static boolean connectsBack(BlockState state, BlockState other, Direction dir) {
+		return WireBlockBase.canConnectTo(state, other) && WireBlockBase.hasConnectionInAbsolute(other, dir.getOpposite());
+	}
+
+	private static boolean connectsBack(Direction face, BlockState other, Direction dir) {
+		return NetworkComponents.isComponent(other) &&
+			NetworkComponents.face(other) == face &&
+			WireBlockBase.hasConnectionInAbsolute(other, dir);
+	}
+
+	private static Direction lowestDir(int mask) {
+		return Direction.byId(Integer.numberOfTrailingZeros(mask));
+	}
+
+	private static Direction highestDir(int mask) {
+		return Direction.byId(31 - Integer.numberOfLeadingZeros(mask));
+	}
+
+	private static Direction directionBetween(long from, long to) {
+		return Direction.fromVector(
+			BlockPos.unpackLongX(to) - BlockPos.unpackLongX(from),
+			BlockPos.unpackLongY(to) - BlockPos.unpackLongY(from),
+			BlockPos.unpackLongZ(to) - BlockPos.unpackLongZ(from));
+	}
+
+	private static void reverse(long[] arr) {
+		for(int i = 0, j = arr.length - 1; i < j; i++, j--) {
+			long tmp = arr[i];
+			arr[i] = arr[j];
+			arr[j] = tmp;
+		}
+	}
+
+	/**
+	 * The result of resolving a connection.
+	 *
+	 * @param resolved   Whether the connection could be resolved without walking the wire.
+	 * @param connection The connection, or null if there is none.
+	 */
+	public record Resolution(boolean resolved, @Nullable NetworkComponentData.Connection connection) {
+		public static final Resolution UNRESOLVED = new Resolution(false, null);
+		public static final Resolution DISCONNECTED = new Resolution(true, null);
+
+		public static Resolution connected(NetworkComponentData.Connection connection) {
+			return new Resolution(true, connection);
+		}
+	}
+}
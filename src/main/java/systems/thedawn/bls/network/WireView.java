@@ -0,0 +1,42 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+/**
+ * Read access to the blocks wires are made of. This is usually a live world, but may also be a
+ * snapshot or a synthetic world.
+ */
+public interface WireView {
+	BlockState getBlockState(BlockPos pos);
+
+	/**
+	 * Whether the given position can be read without loading its chunk.
+	 */
+	boolean isLoaded(BlockPos pos);
+
+	/**
+	 * A view of a live world, with reads counted by the given parking if they load a chunk.
+	 */
+	static WireView of(World world, DiscoveryParking parking) {
+		return new WireView() {
+			@Override
+			public BlockState getBlockState(BlockPos pos) {
+				return parking.getBlockState(world, pos);
+			}
+
+			@Override
+			public boolean isLoaded(BlockPos pos) {
+				return DiscoveryParking.isLoaded(world, pos);
+			}
+		};
+	}
+}
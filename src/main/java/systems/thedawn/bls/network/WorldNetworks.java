@@ -0,0 +1,304 @@
+/*
+ * Blue Light Special
+ * Copyright (C) Thalia Nero 2022
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package systems.thedawn.bls.network;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+import systems.thedawn.bls.block.NetworkComponents;
+import systems.thedawn.bls.block.NetworkNodeBlockEntity;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerBlockEntityEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
+import net.minecraft.server.world.ServerWorld;
+
+/**
+ * Server-side network state for a single world.
+ */
+public final class WorldNetworks {
+	private static final Map<ServerWorld, WorldNetworks> WORLDS = new IdentityHashMap<>();
+
+	private final WireView view;
+	private final WireSegmentIndex segments;
+	private final NetworkGraph graph;
+	private final SignalPropagator signals;
+	private final PowerSolver power;
+	private final NodeScheduler scheduler;
+	private final DiscoveryParking parking;
+	private final NeighborUpdateQueue neighborUpdates;
+	private final NetworkStats stats;
+	private final ParallelDiscovery parallelDiscovery;
+	private final SegmentWalks segmentWalks;
+	private final NodeSync sync;
+	private final ConnectionValidator validator;
+	private final NetworkEvents events;
+	private final GraphStore store;
+	private final NetworkRouter router;
+
+	/**
+	 * The export in progress in this world, if any.
+	 */
+	@Nullable
+	private TopologyExport export;
+
+	private WorldNetworks(ServerWorld world) {
+		this.parking = new DiscoveryParking();
+		this.view = WireView.of(world, this.parking);
+		this.segments = new WireSegmentIndex();
+		this.graph = new NetworkGraph();
+		this.signals = new SignalPropagator(this.graph);
+		this.power = new PowerSolver(this.graph);
+		this.stats = new NetworkStats();
+		this.scheduler = new NodeScheduler(this.graph, this.stats);
+		this.neighborUpdates = new NeighborUpdateQueue(this.stats);
+		this.parallelDiscovery = new ParallelDiscovery(this.stats);
+		this.segmentWalks = new SegmentWalks();
+		this.sync = new NodeSync();
+		this.validator = new ConnectionValidator();
+		this.events = new NetworkEvents();
+		this.store = new GraphStore(this.graph);
+		this.router = new NetworkRouter(this.graph, this.store);
+		this.graph.addListener(this.signals);
+		this.graph.addListener(this.power);
+		this.graph.addListener(this.stats);
+		this.graph.addListener(this.events);
+		this.graph.addListener(this.store);
+		this.graph.addListener(this.router);
+	}
+
+	public static void init() {
+		ServerWorldEvents.UNLOAD.register((server, world) -> {
+			var networks = WORLDS.remove(world);
+			if(networks != null) {
+				networks.cancelExport();
+				networks.store.close();
+			}
+		});
+		ServerBlockEntityEvents.BLOCK_ENTITY_LOAD.register((blockEntity, world) -> {
+			if(blockEntity instanceof NetworkNodeBlockEntity node) {
+				var networks = get(world);
+				networks.stats.onNodeLoaded();
+				long pos = node.getPos().asLong();
+				// the graph is more recent than saved data if the node was seen since the world loaded
+				var face = NetworkComponents.face(node.getCachedState());
+				if(!networks.graph.copyConnections(pos, node.componentData, face)) {
+					networks.graph.addNode(pos, node.componentData);
+				}
+				networks.graph.setLoaded(pos, true);
+				networks.graph.setFace(pos, face);
+				node.componentData.setSignalLevel(networks.signals.signalLevel(pos));
+				node.componentData.setPowerLevel(networks.power.powerLevel(networks.graph.networkId(pos)));
+				node.queueMissingDiscovery();
+				networks.validator.onNodeLoaded(node);
+				// neighbors can't be read safely while the chunk is loading
+				networks.neighborUpdates.markInputs(node.getPos());
+				networks.store.markChanged(node.getPos(), node.componentData.epoch());
+				if(node.hasPendingWork()) {
+					networks.scheduler.enroll(node);
+				}
+			}
+		});
+		ServerBlockEntityEvents.BLOCK_ENTITY_UNLOAD.register((blockEntity, world) -> {
+			// the world may already be unloading, which must not create new state for it
+			var networks = WORLDS.get(world);
+			if(networks != null && blockEntity instanceof NetworkNodeBlockEntity node) {
+				networks.stats.onNodeUnloaded();
+				networks.graph.setLoaded(node.getPos().asLong(), false);
+				node.unparkDiscovery(networks.parking);
+			}
+		});
+		ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
+			// nothing can be parked in a world without network state
+			var networks = WORLDS.get(world);
+			if(networks != null) {
+				networks.parking.onChunkLoaded(chunk.getPos(), networks.scheduler);
+			}
+		});
+		ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+			var networks = WORLDS.get(world);
+			if(networks != null) {
+				networks.segments.onChunkUnloaded(chunk.getPos());
+			}
+		});
+		ServerTickEvents.END_WORLD_TICK.register(world -> get(world).tick(world));
+	}
+
+	/**
+	 * Gets the network state for the given world, creating it if necessary.
+	 */
+	public static WorldNetworks get(ServerWorld world) {
+		return WORLDS.computeIfAbsent(world, WorldNetworks::new);
+	}
+
+	/**
+	 * A view of the blocks in this world for the segment index.
+	 */
+	public WireView view() {
+		return this.view;
+	}
+
+	/**
+	 * The index of wire segments in this world.
+	 */
+	public WireSegmentIndex segments() {
+		return this.segments;
+	}
+
+	/**
+	 * The graph of nodes and networks in this world.
+	 */
+	public NetworkGraph graph() {
+		return this.graph;
+	}
+
+	/**
+	 * The signal level propagator for this world.
+	 */
+	public SignalPropagator signals() {
+		return this.signals;
+	}
+
+	/**
+	 * The power solver for this world.
+	 */
+	public PowerSolver power() {
+		return this.power;
+	}
+
+	/**
+	 * The scheduler for nodes with pending work in this world.
+	 */
+	public NodeScheduler scheduler() {
+		return this.scheduler;
+	}
+
+	/**
+	 * Discovery cursors waiting for chunks to load in this world.
+	 */
+	public DiscoveryParking parking() {
+		return this.parking;
+	}
+
+	/**
+	 * Updates to wire positions waiting for the end of the tick in this world.
+	 */
+	public NeighborUpdateQueue neighborUpdates() {
+		return this.neighborUpdates;
+	}
+
+	/**
+	 * Counters for the network work done in this world.
+	 */
+	public NetworkStats stats() {
+		return this.stats;
+	}
+
+	/**
+	 * Discovery running on worker threads for this world.
+	 */
+	public ParallelDiscovery parallelDiscovery() {
+		return this.parallelDiscovery;
+	}
+
+	/**
+	 * The wires walked by discovery cursors in this world.
+	 */
+	public SegmentWalks segmentWalks() {
+		return this.segmentWalks;
+	}
+
+	/**
+	 * Changes to node data waiting to be sent to clients in this world.
+	 */
+	public NodeSync sync() {
+		return this.sync;
+	}
+
+	/**
+	 * Checks of saved connections waiting for the end of the tick in this world.
+	 */
+	public ConnectionValidator validator() {
+		return this.validator;
+	}
+
+	/**
+	 * Subscriptions to changes of nodes in this world.
+	 */
+	public NetworkEvents events() {
+		return this.events;
+	}
+
+	/**
+	 * The on-disk mirror of node data in this world.
+	 */
+	public GraphStore store() {
+		return this.store;
+	}
+
+	/**
+	 * Shortest routes between nodes in this world.
+	 */
+	public NetworkRouter router() {
+		return this.router;
+	}
+
+	/**
+	 * Whether an export is in progress in this world.
+	 */
+	public boolean isExporting() {
+		return this.export != null;
+	}
+
+	/**
+	 * Starts exporting this world's topology over the following ticks. Only one export runs per world
+	 * at a time, so any export in progress is cancelled.
+	 */
+	public void startExport(TopologyExport export) {
+		this.cancelExport();
+		this.export = export;
+	}
+
+	/**
+	 * Stops the export in progress, if any.
+	 *
+	 * @return Whether an export was stopped.
+	 */
+	public boolean cancelExport() {
+		if(this.export == null) {
+			return false;
+		}
+		this.export.abort("Export to " + this.export.path().getFileName() + " cancelled");
+		this.export = null;
+		return true;
+	}
+
+	private void tick(ServerWorld world) {
+		this.stats.beginTick();
+		this.graph.tick(world.getTime());
+		this.neighborUpdates.tick(world);
+		this.parallelDiscovery.tick(world);
+		this.validator.tick(world);
+		this.scheduler.tick(world);
+		if(this.scheduler.activeCount() == 0 && this.parallelDiscovery.inFlightCount() == 0) {
+			this.segmentWalks.clear();
+		}
+		this.signals.tick(world);
+		this.power.tick(world);
+		this.sync.tick(world);
+		this.events.tick(world, this.graph);
+		this.router.tick();
+		this.store.tick(world);
+		if(this.export != null && this.export.tick(world)) {
+			this.export = null;
+		}
+		this.stats.endTick(world, this);
+	}
+}